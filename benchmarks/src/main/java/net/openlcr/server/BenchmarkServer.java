@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.gson.Gson;
+import io.pkts.buffer.Buffers;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.impl.SipParser;
+import io.sipstack.netty.codec.sip.Connection;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import net.openlcr.common.classes.SystemConfiguration;
+import org.apache.log4j.Level;
+import org.apache.log4j.varia.NullAppender;
+
+/**
+ * Puts LCRServer into the state main() would leave it in, minus the network
+ * and the real database: configuration as in config.example.json, logging at
+ * INFO into a NullAppender (so the formatting is still paid for), and a
+ * FixtureDataSource behind LCRServer.ds.
+ *
+ * @author mgamble
+ */
+public final class BenchmarkServer {
+
+    public static final long SEED = 20230101L;
+
+    private static FixtureDataSource fixture;
+
+    private BenchmarkServer() {
+    }
+
+    /**
+     * Set up once per JVM. preload runs the bulk carrier / source DID / route
+     * table loads, so routing is served from memory - without it every lookup
+     * goes through the LoadingCaches.
+     */
+    public static synchronized FixtureDataSource start(boolean preload) {
+        if (fixture != null) {
+            return fixture;
+        }
+        LCRServer.logger.removeAllAppenders();
+        LCRServer.logger.addAppender(new NullAppender());
+        LCRServer.logger.setAdditivity(false);
+        LCRServer.logger.setLevel(Level.INFO);
+        String json = "{\"sipResponseCode\": \"302\", \"sipErrorCode\": \"418\", \"sipPlatform\": \"metaswitch\", \"cacheEnabled\": true, \"send100Trying\": false, \"locale\": \"CA\"}";
+        LCRServer.config = new Gson().fromJson(json, SystemConfiguration.class);
+        LCRServer.serverConfig = new Gson().fromJson(json, ServerConfiguration.class);
+        fixture = new FixtureDataSource(SEED, 40, 6);
+        LCRServer.ds = fixture;
+        if (preload) {
+            LCRServer.reloadCarrierTable();
+            LCRServer.reloadSourceDIDIndex();
+            LCRServer.reloadRouteTable();
+        }
+        return fixture;
+    }
+
+    /* An INVITE as a Metaswitch would send it - P-Charge-Info optional */
+    public static String invite(String dialedNumber, String chargeNumber, String callID) {
+        StringBuilder invite = new StringBuilder(512);
+        invite.append("INVITE sip:+").append(dialedNumber).append("@127.0.0.1:5060;user=phone SIP/2.0\r\n")
+                .append("Via: SIP/2.0/UDP 127.0.0.2:5060;branch=z9hG4bK-").append(callID).append("\r\n")
+                .append("Max-Forwards: 70\r\n")
+                .append("From: <sip:+1").append(chargeNumber == null ? "4165550100" : chargeNumber).append("@127.0.0.2>;tag=").append(callID.hashCode()).append("\r\n")
+                .append("To: <sip:+").append(dialedNumber).append("@127.0.0.1>\r\n")
+                .append("Call-ID: ").append(callID).append("\r\n")
+                .append("CSeq: 1 INVITE\r\n")
+                .append("Contact: <sip:127.0.0.2:5060>\r\n");
+        if (chargeNumber != null) {
+            invite.append("P-Charge-Info: <sip:+1").append(chargeNumber).append("@127.0.0.2;user=phone>;npi=ISDN\r\n");
+        }
+        return invite.append("Content-Length: 0\r\n\r\n").toString();
+    }
+
+    public static SipMessage frame(String message) throws IOException {
+        return SipParser.frame(Buffers.wrap(message.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /* A Connection that throws away whatever is sent on it */
+    public static Connection discardingConnection() {
+        return (Connection) Proxy.newProxyInstance(BenchmarkServer.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getReturnType() == boolean.class) {
+                return method.getName().equals("isUDP");
+            }
+            return null;
+        });
+    }
+}
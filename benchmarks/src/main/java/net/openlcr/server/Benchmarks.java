@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for benchmarks.jar - the usual JMH command line, but the GC
+ * profiler is always on so every run reports allocation (gc.alloc.rate.norm,
+ * bytes per operation) alongside throughput.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar                  (everything)
+ *   java -jar benchmarks/target/benchmarks.jar HandleInvite     (one class)
+ *   java -jar benchmarks/target/benchmarks.jar -rf json -rff results.json
+ *
+ * @author mgamble
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.address.SipURI;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.RouteModification;
+import net.openlcr.common.classes.TrunkGroup;
+import net.openlcr.server.utils.SipUri;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-route URI work - rewriting the request URI for a carrier trunk
+ * (Broadsoft / M6 contacts) and pulling the charge number out of
+ * P-Charge-Info.
+ *
+ * @author mgamble
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ContactUriBenchmark {
+
+    private static final String CONTACT = "<sip:+14165550100@127.0.0.2;user=phone>";
+
+    private GenericPlatformHandler handler;
+    private SipURI requestURI;
+    private Route route;
+    private Route prependRoute;
+    private Carrier carrier;
+    private TrunkGroup trunk;
+
+    @Setup
+    public void setup() throws IOException, ExecutionException {
+        BenchmarkServer.start(true);
+        handler = new MetaswitchPlatformHandler(LCRServer.logger, null, null, null);
+        SipMessage invite = BenchmarkServer.frame(BenchmarkServer.invite("14165551212", null, "contact-uri-benchmark"));
+        requestURI = (SipURI) invite.toRequest().getRequestUri();
+        carrier = LCRServer.carrierCache.get("1");
+        trunk = carrier.getTrunkGroups().get(0);
+        route = new Route();
+        route.setCarrierID(1);
+        route.setRouteModification(RouteModification.NONE);
+        prependRoute = new Route();
+        prependRoute.setCarrierID(1);
+        prependRoute.setRouteModification(RouteModification.PREPEND);
+        prependRoute.setModificationString("101");
+    }
+
+    @Benchmark
+    public SipURI buildAndRewriteContactURI() throws NumberParseException {
+        return handler.buildAndRewriteContactURI(route, requestURI, carrier, trunk);
+    }
+
+    @Benchmark
+    public SipURI buildAndRewriteContactURIPrepend() throws NumberParseException {
+        return handler.buildAndRewriteContactURI(prependRoute, requestURI, carrier, trunk);
+    }
+
+    @Benchmark
+    public SipUri.SipContactInfo parseSipContact() {
+        return SipUri.parseSipContact(CONTACT);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for the openLCR database, so the server's real
+ * loaders (routeCache, carrierCache, the bulk preloads...) can run without
+ * MariaDB. It answers the handful of queries LCRServer makes by matching on
+ * the SQL text, from tables generated from a seed:
+ *
+ *   carriers       - carrierCount carriers, each with two trunk groups
+ *   routes         - routesPerPrefix routes on every NANP area code ("1NPA"),
+ *                    plus NXX level routes ("1NPANXX") on every tenth one
+ *   source DIDs    - overrides on 1% of billing numbers 1NPA5550000-0099,
+ *                    blacklists on another 1%
+ *
+ * Anything it doesn't recognise gets an empty result set. Same seed, same
+ * data - so runs are comparable.
+ *
+ * Install with LCRServer.ds = new FixtureDataSource(...).
+ *
+ * @author mgamble
+ */
+public final class FixtureDataSource extends HikariDataSource {
+
+    private static final Pattern LOOKUP_NUMBER = Pattern.compile("LEFT\\('(\\d+)'");
+
+    private final List<Map<String, Object>> carriers = new ArrayList<>();
+    private final List<Map<String, Object>> trunkGroups = new ArrayList<>();
+    private final List<Map<String, Object>> routes = new ArrayList<>();
+    private final Map<String, List<Map<String, Object>>> routesByPrefix = new HashMap<>();
+    private final Map<String, List<Map<String, Object>>> sourceDIDRoutes = new HashMap<>();
+    private final Map<String, List<Map<String, Object>>> blacklist = new HashMap<>();
+    private final List<String> areaCodes = new ArrayList<>();
+
+    public FixtureDataSource(long seed, int carrierCount, int routesPerPrefix) {
+        Random random = new Random(seed);
+        for (int carrierID = 1; carrierID <= carrierCount; carrierID++) {
+            carriers.add(row("id", carrierID, "carrier_name", "Carrier " + carrierID, "active", 1, "enable_e164", carrierID % 5 == 0 ? 1 : 0));
+            for (int trunk = 0; trunk < 2; trunk++) {
+                trunkGroups.add(row("trunk_table_id", carrierID * 10 + trunk, "carrier_id", carrierID, "tg_id", "TG" + carrierID + (trunk == 0 ? "A" : "B"),
+                        "ipAddress", "10.0." + carrierID + "." + (trunk + 1), "port", 5060, "priority", 2 - trunk));
+            }
+        }
+        int routeID = 1;
+        for (int npa = 201; npa <= 989; npa++) {
+            if (npa % 100 == 11 || (npa / 10) % 10 == 9) {
+                continue;
+            }
+            String prefix = "1" + npa;
+            areaCodes.add(prefix);
+            routeID = addRoutes(prefix, routeID, routesPerPrefix, carrierCount, random);
+            if (npa % 10 == 0) {
+                for (int nxx = 200; nxx < 1000; nxx += 100) {
+                    routeID = addRoutes(prefix + nxx, routeID, routesPerPrefix, carrierCount, random);
+                }
+            }
+        }
+        for (String areaCode : areaCodes) {
+            for (int line = 0; line < 100; line++) {
+                String billingNumber = areaCode.substring(1) + "555" + String.format("%04d", line);
+                if (line == 0) {
+                    List<Map<String, Object>> overrides = new ArrayList<>();
+                    for (int priority = 2; priority > 0; priority--) {
+                        overrides.add(row("id", routeID++, "billing_number", billingNumber, "carrier_id", 1 + random.nextInt(carrierCount),
+                                "route_modification", null, "modification_string", null, "priority", priority));
+                    }
+                    sourceDIDRoutes.put(billingNumber, overrides);
+                } else if (line == 1) {
+                    blacklist.put(billingNumber, Collections.singletonList(row("billing_number", billingNumber, "carrier_id", 1 + random.nextInt(carrierCount))));
+                }
+            }
+        }
+    }
+
+    private int addRoutes(String prefix, int routeID, int count, int carrierCount, Random random) {
+        List<Map<String, Object>> prefixRoutes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            boolean prepend = random.nextInt(20) == 0;
+            Map<String, Object> route = row("id", routeID++, "digits", prefix, "price", Math.round(random.nextDouble() * 10000) / 1000000.0,
+                    "carrier_id", 1 + random.nextInt(carrierCount), "route_modification", prepend ? "prepend" : null, "modification_string", prepend ? "101" : null,
+                    "active", 1, "carrier_active", 1);
+            prefixRoutes.add(route);
+            routes.add(route);
+        }
+        routesByPrefix.put(prefix, prefixRoutes);
+        return routeID;
+    }
+
+    /* "1NPA" prefixes that have routes - dialed numbers built on these always route */
+    public List<String> getAreaCodes() {
+        return areaCodes;
+    }
+
+    /* A routable 11 digit number, and the same for a billing number that has overrides / a blacklist */
+    public String dialedNumber(Random random) {
+        return areaCodes.get(random.nextInt(areaCodes.size())) + (200 + random.nextInt(800)) + String.format("%04d", random.nextInt(10000));
+    }
+
+    public String overrideBillingNumber(Random random) {
+        return areaCodes.get(random.nextInt(areaCodes.size())).substring(1) + "5550000";
+    }
+
+    public String blacklistBillingNumber(Random random) {
+        return areaCodes.get(random.nextInt(areaCodes.size())).substring(1) + "5550001";
+    }
+
+    @Override
+    public Connection getConnection() {
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return statement((String) args[0]);
+                case "isValid":
+                case "getAutoCommit":
+                    return true;
+                case "isClosed":
+                case "isReadOnly":
+                    return false;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return getConnection();
+    }
+
+    private PreparedStatement statement(String sql) {
+        Map<Integer, Object> parameters = new HashMap<>();
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            if (method.getName().startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                parameters.put((Integer) args[0], args[1]);
+                return null;
+            }
+            if (method.getName().equals("executeQuery")) {
+                return resultSet(query(sql, parameters.get(1) == null ? null : parameters.get(1).toString()));
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    /* The queries LCRServer makes, picked out by their SQL */
+    private List<Map<String, Object>> query(String sql, String parameter) {
+        Matcher lookup = LOOKUP_NUMBER.matcher(sql);
+        if (sql.startsWith("select routes.id") && lookup.find()) {
+            String number = lookup.group(1);
+            List<Map<String, Object>> matched = new ArrayList<>();
+            for (int length = number.length(); length > 0; length--) {
+                List<Map<String, Object>> prefixRoutes = routesByPrefix.get(number.substring(0, length));
+                if (prefixRoutes != null) {
+                    matched.addAll(prefixRoutes);
+                }
+            }
+            return matched;
+        }
+        if (sql.startsWith("select routes.id") && sql.contains("digits like ?")) {
+            String prefix = parameter.substring(0, parameter.length() - 1);
+            List<Map<String, Object>> matched = new ArrayList<>();
+            for (Map<String, Object> route : routes) {
+                if (((String) route.get("digits")).startsWith(prefix)) {
+                    matched.add(route);
+                }
+            }
+            return matched;
+        }
+        if (sql.startsWith("select routes.id") && sql.contains("where routes.id = ?")) {
+            return filter(routes, "id", parameter);
+        }
+        if (sql.startsWith("select routes.id") && sql.contains("carrier.id = ?")) {
+            return filter(routes, "carrier_id", parameter);
+        }
+        if (sql.startsWith("select routes.id") && !sql.contains("updated_at")) {
+            return routes;
+        }
+        if (sql.startsWith("select id, carrier_name, active, enable_e164 from carrier where id = ?")) {
+            return filter(carriers, "id", parameter);
+        }
+        if (sql.startsWith("select trunkgroup.id as trunk_table_id")) {
+            return filter(trunkGroups, "carrier_id", parameter);
+        }
+        if (sql.startsWith("select carrier.id, carrier_name, enable_e164, trunkgroup.id")) {
+            List<Map<String, Object>> joined = new ArrayList<>();
+            for (Map<String, Object> carrier : carriers) {
+                for (Map<String, Object> trunk : filter(trunkGroups, "carrier_id", String.valueOf(carrier.get("id")))) {
+                    Map<String, Object> row = new HashMap<>(carrier);
+                    row.putAll(trunk);
+                    joined.add(row);
+                }
+            }
+            return joined;
+        }
+        if (sql.contains("from source_did_routes")) {
+            return parameter != null ? sourceDIDRoutes.getOrDefault(parameter, Collections.emptyList()) : flatten(sourceDIDRoutes);
+        }
+        if (sql.contains("from blacklist_routes")) {
+            return parameter != null ? blacklist.getOrDefault(parameter, Collections.emptyList()) : flatten(blacklist);
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<Map<String, Object>> filter(List<Map<String, Object>> rows, String column, String value) {
+        List<Map<String, Object>> matched = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            if (String.valueOf(row.get(column)).equals(value)) {
+                matched.add(row);
+            }
+        }
+        return matched;
+    }
+
+    private static List<Map<String, Object>> flatten(Map<String, List<Map<String, Object>>> table) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (List<Map<String, Object>> value : table.values()) {
+            rows.addAll(value);
+        }
+        return rows;
+    }
+
+    private static ResultSet resultSet(List<Map<String, Object>> rows) {
+        int[] position = {-1};
+        Object[] last = {null};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++position[0] < rows.size();
+                case "wasNull":
+                    return last[0] == null;
+                case "close":
+                    return null;
+                default:
+                    break;
+            }
+            if (method.getName().startsWith("get") && args != null && args.length == 1) {
+                Map<String, Object> row = rows.get(position[0]);
+                last[0] = args[0] instanceof String ? row.get(args[0]) : null;
+                Object value = last[0];
+                if (method.getReturnType() == String.class) {
+                    return value == null ? null : value.toString();
+                }
+                if (value == null) {
+                    return defaultValue(method.getReturnType());
+                }
+                if (method.getReturnType() == int.class) {
+                    return ((Number) value).intValue();
+                }
+                if (method.getReturnType() == long.class) {
+                    return ((Number) value).longValue();
+                }
+                if (method.getReturnType() == double.class) {
+                    return ((Number) value).doubleValue();
+                }
+                return value;
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private static Map<String, Object> row(Object... columns) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 0; i < columns.length; i += 2) {
+            row.put((String) columns[i], columns[i + 1]);
+        }
+        return row;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FixtureDataSource.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
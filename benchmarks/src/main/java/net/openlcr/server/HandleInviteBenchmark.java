@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import io.pkts.packet.sip.SipMessage;
+import io.sipstack.netty.codec.sip.Connection;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole INVITE through MetaswitchPlatformHandler.handleInvite, the 302
+ * going to a Connection that discards it. Each call frames a fresh message
+ * from bytes - pkts parses headers lazily, so reusing one would skip work the
+ * server really does.
+ *
+ * Dialed numbers cycle over 4096 routable numbers, and a quarter of the calls
+ * come from a billing number with source DID overrides.
+ *
+ * @author mgamble
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandleInviteBenchmark {
+
+    @Param({"false", "true"})
+    public boolean preload;
+
+    private final String[] invites = new String[4096];
+    private final Connection connection = BenchmarkServer.discardingConnection();
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        FixtureDataSource fixture = BenchmarkServer.start(preload);
+        Random random = new Random(BenchmarkServer.SEED);
+        for (int i = 0; i < invites.length; i++) {
+            String chargeNumber = i % 4 == 0 ? fixture.overrideBillingNumber(random) : "4165550100";
+            invites[i] = BenchmarkServer.invite(fixture.dialedNumber(random), chargeNumber, "bench-" + i);
+        }
+        /* Warm the caches so this measures routing, not the first load */
+        for (int i = 0; i < invites.length; i++) {
+            handleInvite();
+        }
+    }
+
+    @Benchmark
+    public void handleInvite() throws IOException {
+        SipMessage msg = BenchmarkServer.frame(invites[next++ & (invites.length - 1)]);
+        new MetaswitchPlatformHandler(LCRServer.logger, msg, connection, null).handleInvite(msg, connection, null);
+    }
+
+    /* Just the framing, to subtract from the above */
+    @Benchmark
+    public SipMessage frame() throws IOException {
+        SipMessage msg = BenchmarkServer.frame(invites[next++ & (invites.length - 1)]);
+        msg.getCallIDHeader();
+        return msg;
+    }
+}
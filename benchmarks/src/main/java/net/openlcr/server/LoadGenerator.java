@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import net.openlcr.server.utils.LatencyHistogram;
+
+/**
+ * Open-loop SIP load generator - fires INVITEs at a fixed rate whether or not
+ * the server is keeping up, matches the final responses by Call-ID and
+ * reports the rate actually achieved, latency and loss.
+ *
+ * Latency is measured from when each INVITE was due to be sent, not when it
+ * went out, so if the sender falls behind (or the server pushes back on TCP)
+ * the delay still counts - the coordinated omission correction. The
+ * uncorrected numbers are printed too.
+ *
+ * Numbers come from a distribution file, one call type per line:
+ *
+ *   # dialed,charge,weight - charge may be empty (no P-Charge-Info), weight defaults to 1
+ *   14165551212,4165550100,10
+ *   442071234567,,1
+ *
+ * --embedded starts LCRServer in this JVM on the target address, on a
+ * FixtureDataSource instead of MariaDB (--preload for the in-memory tables),
+ * which gives a repeatable capacity number for one box. Without a numbers
+ * file it dials the fixture's routable numbers.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar net.openlcr.server.LoadGenerator --embedded --cps 2000 --duration 60
+ *
+ * No retransmissions - an INVITE that isn't answered within --timeout is lost.
+ * Final responses are ACKed.
+ *
+ * @author mgamble
+ */
+public final class LoadGenerator {
+
+    private final InetSocketAddress target;
+    private final boolean tcp;
+    private final ByteChannel channel;
+    private final String localHost;
+    private final int localPort;
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final Map<String, Long> sentAt = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram uncorrected = new LatencyHistogram();
+    private final AtomicLong redirected = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+    private final AtomicLong otherFinal = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final String instance = Long.toHexString(System.nanoTime());
+    private volatile long timeoutNanos = Long.MAX_VALUE;
+    private volatile boolean optionsAnswered = false;
+    private volatile boolean running = true;
+
+    public LoadGenerator(InetSocketAddress target, boolean tcp) throws IOException {
+        this.target = target;
+        this.tcp = tcp;
+        if (tcp) {
+            SocketChannel socket = SocketChannel.open(target);
+            socket.socket().setTcpNoDelay(true);
+            this.channel = socket;
+            this.localHost = socket.socket().getLocalAddress().getHostAddress();
+            this.localPort = socket.socket().getLocalPort();
+        } else {
+            DatagramChannel datagram = DatagramChannel.open();
+            datagram.bind(new InetSocketAddress(target.getAddress(), 0));
+            datagram.connect(target);
+            datagram.socket().setReceiveBufferSize(4 * 1024 * 1024);
+            this.channel = datagram;
+            this.localHost = datagram.socket().getLocalAddress().getHostAddress();
+            this.localPort = datagram.socket().getLocalPort();
+        }
+        Thread receiver = new Thread(this::receive, "loadgen-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /* Keep sending OPTIONS until the server answers - it may still be starting up */
+    public boolean awaitServer(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int attempt = 0;
+        while (!optionsAnswered && System.currentTimeMillis() < deadline) {
+            String callID = "options-" + instance + "-" + attempt++;
+            send(request("OPTIONS", "sip:" + target.getHostString() + ":" + target.getPort(), callID, "z9hG4bK-" + callID, null, null, null));
+            Thread.sleep(250);
+        }
+        return optionsAnswered;
+    }
+
+    /**
+     * Send cps INVITEs a second for durationSeconds, then wait timeoutMillis for
+     * stragglers and print the results.
+     */
+    public void run(List<Call> calls, double[] cumulativeWeights, int cps, int durationSeconds, long timeoutMillis, long seed) throws IOException, InterruptedException {
+        Random random = new Random(seed);
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long interval = TimeUnit.SECONDS.toNanos(1) / cps;
+        long total = (long) cps * durationSeconds;
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long answeredAtLastReport = 0;
+        for (long i = 0; i < total; i++) {
+            long due = start + i * interval;
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            Call call = calls.get(pick(cumulativeWeights, random.nextDouble()));
+            String callID = instance + "-" + i;
+            pending.put(callID, due);
+            sentAt.put(callID, System.nanoTime());
+            send(invite(call, callID));
+            if (now >= nextReport) {
+                long answered = latency.getCount();
+                System.out.println(String.format("%4ds  sent %d  answered %d/s  pending %d", TimeUnit.NANOSECONDS.toSeconds(now - start), i + 1, answered - answeredAtLastReport, pending.size()));
+                answeredAtLastReport = answered;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        long sendEnd = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        running = false;
+        report(total, sendEnd - start);
+    }
+
+    private void report(long sent, long sendNanos) {
+        double seconds = sendNanos / 1e9;
+        long answered = latency.getCount();
+        long lost = pending.size() + late.get();
+        System.out.println();
+        System.out.println(String.format("Offered     %d INVITEs over %.1fs (%.0f CPS) via %s to %s", sent, seconds, sent / seconds, tcp ? "TCP" : "UDP", target.getHostString() + ":" + target.getPort()));
+        System.out.println(String.format("Answered    %d (%.0f CPS)  -  302 %d  503 %d  other %d", answered, answered / seconds, redirected.get(), unavailable.get(), otherFinal.get()));
+        System.out.println(String.format("Lost        %d (%.3f%%)%s", lost, sent == 0 ? 0.0 : 100.0 * lost / sent, late.get() > 0 ? " - " + late.get() + " of them answered after the timeout" : ""));
+        System.out.println("Latency (ms, from when each INVITE was due)      " + percentiles(latency));
+        System.out.println("Latency (ms, from when it was sent - uncorrected) " + percentiles(uncorrected));
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format("p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f", millis(histogram, 0.5), millis(histogram, 0.9), millis(histogram, 0.99), millis(histogram, 0.999), millis(histogram, 1.0));
+    }
+
+    private static double millis(LatencyHistogram histogram, double quantile) {
+        return histogram.getValueAtQuantile(quantile) / 1e6;
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        StringBuilder stream = new StringBuilder();
+        while (running) {
+            try {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    System.err.println("Server closed the connection");
+                    return;
+                }
+                buffer.flip();
+                String data = StandardCharsets.US_ASCII.decode(buffer).toString();
+                if (!tcp) {
+                    received(data);
+                    continue;
+                }
+                stream.append(data);
+                String message;
+                while ((message = nextStreamMessage(stream)) != null) {
+                    received(message);
+                }
+            } catch (IOException ex) {
+                if (running) {
+                    System.err.println("Receive failed: " + ex);
+                }
+            }
+        }
+    }
+
+    /* Pull one complete message off the front of a TCP stream, or null if there isn't one yet */
+    private static String nextStreamMessage(StringBuilder stream) {
+        int headersEnd = stream.indexOf("\r\n\r\n");
+        if (headersEnd < 0) {
+            return null;
+        }
+        String contentLength = header(stream.substring(0, headersEnd), "Content-Length", "l");
+        int end = headersEnd + 4 + (contentLength == null ? 0 : Integer.parseInt(contentLength.trim()));
+        if (stream.length() < end) {
+            return null;
+        }
+        String message = stream.substring(0, end);
+        stream.delete(0, end);
+        return message;
+    }
+
+    private void received(String message) throws IOException {
+        long now = System.nanoTime();
+        if (!message.startsWith("SIP/2.0 ")) {
+            return;
+        }
+        int status = Integer.parseInt(message.substring(8, 11));
+        String callID = header(message, "Call-ID", "i");
+        if (callID == null || status < 200) {
+            return;
+        }
+        if (callID.startsWith("options-")) {
+            optionsAnswered = true;
+            return;
+        }
+        Long due = pending.remove(callID);
+        Long sent = sentAt.remove(callID);
+        if (due == null) {
+            return;
+        }
+        if (now - due > timeoutNanos) {
+            late.incrementAndGet();
+            return;
+        }
+        latency.record(now - due);
+        uncorrected.record(now - sent);
+        if (status == 302) {
+            redirected.incrementAndGet();
+        } else if (status == 503) {
+            unavailable.incrementAndGet();
+        } else {
+            otherFinal.incrementAndGet();
+        }
+        /* Non-2xx final responses are ACKed hop by hop - same branch, the To tag from the response */
+        String via = header(message, "Via", "v");
+        String branch = via == null ? null : parameter(via, "branch");
+        send(request("ACK", requestURI(message), callID, branch, header(message, "From", "f"), header(message, "To", "t"), "1 ACK"));
+    }
+
+    private String invite(Call call, String callID) {
+        StringBuilder invite = new StringBuilder(512);
+        String uri = "sip:+" + call.dialed + "@" + target.getHostString() + ":" + target.getPort() + ";user=phone";
+        invite.append(request("INVITE", uri, callID, "z9hG4bK-" + callID, "<sip:+1" + (call.charge == null ? "4165550100" : call.charge) + "@" + localHost + ">;tag=" + callID.hashCode(),
+                "<sip:+" + call.dialed + "@" + target.getHostString() + ">", "1 INVITE"));
+        if (call.charge != null) {
+            int headersEnd = invite.length() - "Content-Length: 0\r\n\r\n".length();
+            invite.insert(headersEnd, "P-Charge-Info: <sip:+1" + call.charge + "@" + localHost + ";user=phone>;npi=ISDN\r\n");
+        }
+        return invite.toString();
+    }
+
+    private String request(String method, String uri, String callID, String branch, String from, String to, String cseq) {
+        return method + " " + uri + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/" + (tcp ? "TCP " : "UDP ") + localHost + ":" + localPort + ";branch=" + branch + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "From: " + (from == null ? "<sip:loadgen@" + localHost + ">;tag=" + instance : from) + "\r\n"
+                + "To: " + (to == null ? "<" + uri + ">" : to) + "\r\n"
+                + "Call-ID: " + callID + "\r\n"
+                + "CSeq: " + (cseq == null ? "1 " + method : cseq) + "\r\n"
+                + "Contact: <sip:loadgen@" + localHost + ":" + localPort + (tcp ? ";transport=tcp" : "") + ">\r\n"
+                + "Content-Length: 0\r\n\r\n";
+    }
+
+    /* The ACK goes to the same Request-URI as the INVITE - rebuilt from the To header */
+    private String requestURI(String response) {
+        String to = header(response, "To", "t");
+        int open = to == null ? -1 : to.indexOf('<');
+        int close = to == null ? -1 : to.indexOf('>');
+        return open >= 0 && close > open ? to.substring(open + 1, close) : "sip:" + target.getHostString();
+    }
+
+    private void send(String message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+        synchronized (channel) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static String header(CharSequence message, String name, String compact) {
+        String text = message.toString();
+        for (String line : text.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String headerName = line.substring(0, colon).trim();
+                if (headerName.equalsIgnoreCase(name) || headerName.equalsIgnoreCase(compact)) {
+                    return line.substring(colon + 1).trim();
+                }
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private static String parameter(String header, String name) {
+        for (String part : header.split(";")) {
+            int equals = part.indexOf('=');
+            if (equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                return part.substring(equals + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static int pick(double[] cumulativeWeights, double value) {
+        double target = value * cumulativeWeights[cumulativeWeights.length - 1];
+        int low = 0;
+        int high = cumulativeWeights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeWeights[middle] <= target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public static final class Call {
+
+        final String dialed;
+        final String charge;
+        final double weight;
+
+        Call(String dialed, String charge, double weight) {
+            this.dialed = dialed;
+            this.charge = charge;
+            this.weight = weight;
+        }
+    }
+
+    static List<Call> readCalls(String file) throws IOException {
+        List<Call> calls = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            String charge = fields.length > 1 && !fields[1].trim().isEmpty() ? fields[1].trim() : null;
+            double weight = fields.length > 2 && !fields[2].trim().isEmpty() ? Double.parseDouble(fields[2].trim()) : 1;
+            calls.add(new Call(fields[0].trim().replace("+", ""), charge, weight));
+        }
+        return calls;
+    }
+
+    /* The fixture's routable numbers - a quarter of them from billing numbers with overrides */
+    static List<Call> fixtureCalls(FixtureDataSource fixture, long seed) {
+        Random random = new Random(seed);
+        List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            calls.add(new Call(fixture.dialedNumber(random), i % 4 == 0 ? fixture.overrideBillingNumber(random) : "4165550100", 1));
+        }
+        return calls;
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("target").withRequiredArg().defaultsTo("127.0.0.1:5070");
+        parser.accepts("transport").withRequiredArg().defaultsTo("udp");
+        parser.accepts("cps").withRequiredArg().defaultsTo("1000");
+        parser.accepts("duration").withRequiredArg().defaultsTo("30");
+        parser.accepts("timeout").withRequiredArg().defaultsTo("4000");
+        parser.accepts("numbers").withRequiredArg();
+        parser.accepts("seed").withRequiredArg().defaultsTo(String.valueOf(BenchmarkServer.SEED));
+        parser.accepts("embedded");
+        parser.accepts("preload");
+        OptionSet options = parser.parse(args);
+
+        String[] hostPort = options.valueOf("target").toString().split(":");
+        InetSocketAddress target = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        long seed = Long.parseLong(options.valueOf("seed").toString());
+
+        FixtureDataSource fixture = null;
+        if (options.has("embedded")) {
+            fixture = BenchmarkServer.start(options.has("preload"));
+            InboundHandler handler = new InboundHandler();
+            handler.setLogger(LCRServer.logger);
+            CoreSipStack stack = new CoreSipStack(handler, hostPort[0], target.getPort(), LCRServer.getServerConfiguration(), LCRServer.logger);
+            handler.setStack(stack);
+            Thread server = new Thread(() -> {
+                try {
+                    stack.run();
+                } catch (Exception ex) {
+                    System.err.println("Embedded server failed: " + ex);
+                }
+            }, "embedded-lcr-server");
+            server.setDaemon(true);
+            server.start();
+            System.out.println("Embedded LCRServer on " + target + (options.has("preload") ? " (preloaded)" : " (caches only)"));
+        }
+
+        List<Call> calls;
+        if (options.has("numbers")) {
+            calls = readCalls(options.valueOf("numbers").toString());
+        } else if (fixture != null) {
+            calls = fixtureCalls(fixture, seed);
+        } else {
+            System.out.println("No --numbers file - needed unless running --embedded");
+            System.exit(1);
+            return;
+        }
+        if (calls.isEmpty()) {
+            System.out.println("No numbers to dial");
+            System.exit(1);
+        }
+        double[] cumulativeWeights = new double[calls.size()];
+        double sum = 0;
+        for (int i = 0; i < calls.size(); i++) {
+            sum += calls.get(i).weight;
+            cumulativeWeights[i] = sum;
+        }
+
+        LoadGenerator generator = new LoadGenerator(target, "tcp".equalsIgnoreCase(options.valueOf("transport").toString()));
+        if (!generator.awaitServer(10000)) {
+            System.out.println("No answer to OPTIONS from " + target + " - is the server running?");
+            System.exit(1);
+        }
+        generator.run(calls, cumulativeWeights, Integer.parseInt(options.valueOf("cps").toString()), Integer.parseInt(options.valueOf("duration").toString()),
+                Long.parseLong(options.valueOf("timeout").toString()), seed);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.openlcr.server.utils.NumberNormalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a request URI user into the number we look routes up by - the
+ * NumberNormalizer fast path against plain libphonenumber.
+ *
+ * @author mgamble
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NumberNormalizationBenchmark {
+
+    private final String[] numbers = new String[1024];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        FixtureDataSource fixture = BenchmarkServer.start(false);
+        Random random = new Random(BenchmarkServer.SEED);
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = "+" + fixture.dialedNumber(random);
+        }
+    }
+
+    private String nextNumber() {
+        return numbers[next++ & (numbers.length - 1)];
+    }
+
+    @Benchmark
+    public String normalizer() throws NumberParseException {
+        PhoneNumber number = NumberNormalizer.parse(nextNumber(), "CA");
+        NumberNormalizer.isValidNumber(number);
+        return number.getCountryCode() + "" + number.getNationalNumber();
+    }
+
+    @Benchmark
+    public String libphonenumber() throws NumberParseException {
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
+        PhoneNumber number = util.parse(nextNumber(), "CA");
+        util.isValidNumber(number);
+        return number.getCountryCode() + "" + number.getNationalNumber();
+    }
+
+    @Benchmark
+    public String formatDialable() throws NumberParseException {
+        return NumberNormalizer.formatDialable(NumberNormalizer.parse(nextNumber(), "CA"), "CA", true);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the routes for a dialed number. With preload=false this goes through
+ * LCRServer.routeCache (hits, and misses that run the loader against the
+ * fixture database); with preload=true it's the in-memory RouteTable.
+ *
+ * @author mgamble
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RouteLookupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean preload;
+
+    private final String[] numbers = new String[4096];
+    private int next = 0;
+
+    @Setup
+    public void setup() throws ExecutionException {
+        FixtureDataSource fixture = BenchmarkServer.start(preload);
+        Random random = new Random(BenchmarkServer.SEED);
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = fixture.dialedNumber(random);
+            LCRServer.lookupRoutes(numbers[i]);
+        }
+    }
+
+    private String nextNumber() {
+        return numbers[next++ & (numbers.length - 1)];
+    }
+
+    @Benchmark
+    public RouteSet lookup() throws ExecutionException {
+        return LCRServer.lookupRoutes(nextNumber());
+    }
+
+    /* What a routeCache miss costs - the loader, the query and building the RouteSet */
+    @Benchmark
+    public RouteSet routeCacheMiss() throws ExecutionException {
+        String number = nextNumber();
+        LCRServer.routeCache.invalidate(number);
+        return LCRServer.routeCache.get(number);
+    }
+}
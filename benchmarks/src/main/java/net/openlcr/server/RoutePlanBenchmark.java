@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.openlcr.common.classes.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Putting a call's route plan together - source DID overrides in front,
+ * blacklisted carriers taken out - and turning it into the Contact trunks.
+ *
+ * @author mgamble
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutePlanBenchmark {
+
+    private RouteSet routes;
+    private RouteSet overrides;
+    private ImmutableSet<Integer> blacklist;
+
+    @Setup
+    public void setup() throws ExecutionException {
+        FixtureDataSource fixture = BenchmarkServer.start(true);
+        Random random = new Random(BenchmarkServer.SEED);
+        routes = LCRServer.lookupRoutes(fixture.dialedNumber(random));
+        overrides = LCRServer.getSourceDIDOverrides(Long.parseLong(fixture.overrideBillingNumber(random)));
+        /* Blacklist the cheapest carrier so the merge has something to skip */
+        blacklist = ImmutableSet.of(routes.get(0).getCarrierID());
+    }
+
+    @Benchmark
+    public void merge(Blackhole blackhole) {
+        for (Route route : new RoutePlan(overrides, routes, blacklist)) {
+            blackhole.consume(route);
+        }
+    }
+
+    @Benchmark
+    public String contactTemplate() throws ExecutionException {
+        ContactTemplate template = ContactTemplate.forPlan(new RoutePlan(overrides, routes, blacklist), 0.6);
+        return template.renderMetaswitchContact("sip:+14165551212@127.0.0.1:5060;user=phone");
+    }
+}
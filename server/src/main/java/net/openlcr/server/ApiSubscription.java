@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.neovisionaries.ws.client.WebSocket;
+import com.neovisionaries.ws.client.WebSocketAdapter;
+import com.neovisionaries.ws.client.WebSocketException;
+import com.neovisionaries.ws.client.WebSocketFactory;
+import com.neovisionaries.ws.client.WebSocketFrame;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a WebSocket open to the API server and applies the change events it
+ * pushes, so an edit made through the API is live as soon as it's committed
+ * instead of on the next change sync pass or cache expiry. Events are JSON,
+ * one per message (or an array of them):
+ *
+ *   {"type": "route", "id": 1234}                  one route added / changed / deleted
+ *   {"type": "route", "prefix": "1416"}            everything under a prefix (rate deck import)
+ *   {"type": "carrier", "id": 12}                  a carrier and its routes
+ *   {"type": "trunkgroup", "carrierId": 12}        a carrier's trunk groups
+ *   {"type": "override", "billingNumber": "..."}   source DID overrides for a number
+ *   {"type": "blacklist", "billingNumber": "..."}  carrier blacklist for a number
+ *   {"type": "resync"}                             run a change sync pass now
+ *
+ * An event only says what changed - the rows are always re-read from the
+ * database, so a duplicated or reordered event is harmless. Events are
+ * applied on the maintenance thread, same as ChangeSync and the full reloads.
+ *
+ * A dropped connection is retried with exponential backoff (with jitter, so a
+ * fleet doesn't reconnect in lockstep after an API server restart). Events
+ * sent while we were disconnected are lost, so each reconnect runs a change
+ * sync pass to catch up - with changeSyncEnabled off, missed changes wait for
+ * the cache TTLs / periodic reloads.
+ *
+ * @author mgamble
+ */
+public final class ApiSubscription {
+
+    /* A connection that stays up this long counts as healthy - the next drop starts backing off from the minimum again */
+    private static final long STABLE_MILLIS = 30000;
+
+    private final Logger logger;
+    private final String url;
+    private final String token;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Runnable resync;
+    private final Gson gson = new Gson();
+    private final WebSocketFactory factory = new WebSocketFactory().setConnectionTimeout(10000);
+    private final ScheduledExecutorService connector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "openlcr-api-subscription");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean reconnectPending = new AtomicBoolean();
+    private final AtomicLong eventsApplied = new AtomicLong();
+    private final AtomicLong eventsRejected = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile boolean connected;
+    private volatile WebSocket socket;
+    private volatile long connectedAt;
+    private long backoffMillis;
+
+    /**
+     * resync is run after every reconnect, and on a "resync" event - pass the
+     * ChangeSync, or null if it's turned off.
+     */
+    public ApiSubscription(ServerConfiguration serverConfig, Runnable resync, Logger logger) {
+        this.logger = logger;
+        this.url = serverConfig.getApiUrl();
+        this.token = serverConfig.getApiToken();
+        this.minBackoffMillis = Math.max(1, serverConfig.getApiReconnectMinSeconds()) * 1000L;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, serverConfig.getApiReconnectMaxSeconds() * 1000L);
+        this.backoffMillis = minBackoffMillis;
+        this.resync = resync;
+    }
+
+    public void start() {
+        running = true;
+        connector.execute(this::connect);
+    }
+
+    public void stop() {
+        running = false;
+        connector.shutdownNow();
+        WebSocket current = socket;
+        if (current != null) {
+            current.disconnect();
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getEventsApplied() {
+        return eventsApplied.get();
+    }
+
+    /* Messages that didn't parse, and events of a type we don't know or missing what they apply to */
+    public long getEventsRejected() {
+        return eventsRejected.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    /* Only ever runs on the connector thread */
+    private void connect() {
+        reconnectPending.set(false);
+        if (!running) {
+            return;
+        }
+        try {
+            WebSocket webSocket = factory.createSocket(url);
+            if (!token.isEmpty()) {
+                webSocket.addHeader("Authorization", "Bearer " + token);
+            }
+            webSocket.setPingInterval(30000);
+            webSocket.addListener(new Listener());
+            socket = webSocket;
+            webSocket.connect();
+        } catch (IOException | WebSocketException ex) {
+            logger.warn("API subscription could not connect to " + url + ": " + ex);
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (!running || !reconnectPending.compareAndSet(false, true)) {
+            return;
+        }
+        connector.execute(() -> {
+            if (connectedAt > 0 && System.currentTimeMillis() - connectedAt >= STABLE_MILLIS) {
+                backoffMillis = minBackoffMillis;
+            }
+            connectedAt = 0;
+            /* Anywhere between half and all of the current backoff */
+            long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+            reconnects.incrementAndGet();
+            logger.info("API subscription reconnecting to " + url + " in " + delay + "ms");
+            connector.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /* Parse a message and queue its events on the maintenance thread */
+    void handleMessage(String text) {
+        ChangeEvent[] events;
+        try {
+            String trimmed = text.trim();
+            events = trimmed.startsWith("[") ? gson.fromJson(trimmed, ChangeEvent[].class) : new ChangeEvent[]{gson.fromJson(trimmed, ChangeEvent.class)};
+        } catch (JsonSyntaxException ex) {
+            eventsRejected.incrementAndGet();
+            logger.warn("API subscription ignoring unparseable message \"" + text + "\": " + ex);
+            return;
+        }
+        if (events == null) {
+            return;
+        }
+        for (ChangeEvent event : events) {
+            if (event == null) {
+                continue;
+            }
+            LCRServer.maintenanceExecutor.execute(() -> {
+                try {
+                    if (apply(event)) {
+                        eventsApplied.incrementAndGet();
+                    } else {
+                        eventsRejected.incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    logger.error("API subscription could not apply " + event + " - change sync / cache expiry will pick it up: " + ex, ex);
+                }
+            });
+        }
+    }
+
+    /* Returns false for events we don't understand - call on the maintenance thread */
+    boolean apply(ChangeEvent event) throws SQLException {
+        String type = event.type == null ? "" : event.type;
+        switch (type) {
+            case "route":
+                if (isDigits(event.prefix)) {
+                    LCRServer.reloadRoutePrefix(event.prefix);
+                    return true;
+                }
+                if (event.id != null) {
+                    ChangeSync.reloadRoute(event.id);
+                    return true;
+                }
+                break;
+            case "carrier":
+                if (event.id != null) {
+                    ChangeSync.reloadCarriers(Collections.singleton(event.id));
+                    return true;
+                }
+                break;
+            case "trunkgroup":
+                Integer carrierID = event.carrierId != null ? event.carrierId : event.id;
+                if (carrierID != null) {
+                    LCRServer.applyCarrierChange(carrierID);
+                    return true;
+                }
+                break;
+            case "override":
+                if (isDigits(event.billingNumber)) {
+                    LCRServer.applySourceDIDRouteChange(event.billingNumber);
+                    return true;
+                }
+                break;
+            case "blacklist":
+                if (isDigits(event.billingNumber)) {
+                    LCRServer.applyBlacklistChange(event.billingNumber);
+                    return true;
+                }
+                break;
+            case "resync":
+                if (resync != null) {
+                    resync.run();
+                }
+                return true;
+            default:
+                break;
+        }
+        logger.warn("API subscription ignoring unknown or incomplete event " + event);
+        return false;
+    }
+
+    private static boolean isDigits(String value) {
+        return value != null && !value.isEmpty() && value.chars().allMatch(Character::isDigit);
+    }
+
+    private final class Listener extends WebSocketAdapter {
+
+        @Override
+        public void onConnected(WebSocket webSocket, Map<String, List<String>> headers) {
+            boolean reconnected = reconnects.get() > 0;
+            connectedAt = System.currentTimeMillis();
+            connected = true;
+            logger.info("API subscription connected to " + url);
+            if (reconnected && resync != null) {
+                LCRServer.maintenanceExecutor.execute(resync);
+            }
+        }
+
+        @Override
+        public void onDisconnected(WebSocket webSocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
+            connected = false;
+            if (running) {
+                logger.warn("API subscription to " + url + " lost" + (closedByServer ? " (closed by server)" : ""));
+                scheduleReconnect();
+            }
+        }
+
+        @Override
+        public void onTextMessage(WebSocket webSocket, String text) {
+            handleMessage(text);
+        }
+    }
+
+    /* One change event as the API server sends it - whichever fields apply to the type */
+    static final class ChangeEvent {
+
+        String type;
+        Integer id;
+        Integer carrierId;
+        String prefix;
+        String billingNumber;
+
+        @Override
+        public String toString() {
+            return "{type=" + type + ", id=" + id + ", carrierId=" + carrierId + ", prefix=" + prefix + ", billingNumber=" + billingNumber + "}";
+        }
+    }
+}
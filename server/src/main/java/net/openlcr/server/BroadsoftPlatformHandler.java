@@ -16,7 +16,6 @@
  */
 package net.openlcr.server;
 
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.pkts.packet.sip.SipMessage;
@@ -27,13 +26,8 @@ import io.pkts.packet.sip.header.FromHeader;
 import io.sipstack.netty.codec.sip.Connection;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import net.openlcr.common.classes.Carrier;
-import net.openlcr.common.classes.DIDRoute;
-import net.openlcr.common.classes.Route;
 import net.openlcr.common.classes.SupportedPlatform;
-import net.openlcr.common.classes.TrunkGroup;
+import net.openlcr.server.utils.NumberNormalizer;
 import org.apache.log4j.Logger;
 
 /**
@@ -54,74 +48,58 @@ public final class BroadsoftPlatformHandler extends GenericPlatformHandler {
 
     @Override
     public void appendLog(String logMessage) {
-        System.out.println(logMessage);
         logger.info(logMessage);
     }
     
     @Override
     public void handleOptions(SipMessage msg, Connection connection, CoreSipStack stack) {
         // TODO: Fix static port setting of 5060
-        SipResponse response = msg.createResponse(200);
-        this.appendLog(("Got OPTIONS request from " + msg.getViaHeader().getHost() + " - responding 200.... all quiet on the western front....."));
-        final io.sipstack.netty.codec.sip.Connection remoteConnection = stack.connect(msg.getViaHeader().getHost().toString(), 5060);
+        SipResponse response = this.optionsResponse(msg);
+        if (response.getStatus() == 200) {
+            this.appendLog(("Got OPTIONS request from " + msg.getViaHeader().getHost() + " - responding 200.... all quiet on the western front....."));
+        }
+        final io.sipstack.netty.codec.sip.Connection remoteConnection = this.replyConnection(msg, connection, stack);
         remoteConnection.send(response);
     }
 
     @Override
     public void handleInvite(SipMessage msg, Connection connection, CoreSipStack stack) {
 
-        PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
         final SipURI requestURI = (SipURI) msg.toRequest().getRequestUri();
 
         FromHeader fromHeader = msg.getFromHeader();
         try {
-            PhoneNumber calledNumber = phoneUtil.parse(requestURI.getUser().toString(), "CA");
+            PhoneNumber calledNumber = NumberNormalizer.parse(requestURI.getUser().toString(), "CA");
 
-            if (phoneUtil.isValidNumber(calledNumber)) {
+            if (NumberNormalizer.isValidNumber(calledNumber)) {
                 this.appendLog("Starting routing lookup for: " + calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber());
 
             }
-            DIDRoute targetRoutes = LCRServer.routeCache.get(calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber());
+            RouteSet targetRoutes = LCRServer.lookupRoutes(calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber());
 
-            double q = 1;
-            if (targetRoutes.getTargetRoutes().isEmpty()) {
+            if (targetRoutes.isEmpty()) {
                 this.appendLog("No routes found for for: " + calledNumber.toString() + "(Lookup was " + calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber() + ")");
                 /* We have no routes - bail! */
                 /* We will return a 503 for now */
                 SipResponse response = msg.toRequest().createResponse(503);
-                connection.send(response);
+                this.sendResponse(msg, connection, response);
             } else {
                 SipResponse response = msg.toRequest().createResponse(Integer.parseInt(LCRServer.getConfiguration().getSipResponseCode()));
                 
                 ContactHeader.Builder contactHeaderBuilder = ContactHeader.with();
-                Set<Integer> seenCarriers = new HashSet();
-                for (Route route : targetRoutes.getTargetRoutes()) {
-                    if (seenCarriers.contains(route.getCarrierID())) {
-                        continue;
-                    } else {
-                        seenCarriers.add(route.getCarrierID());
-                    }
-                    if (q > 0.1) {
-                        //LCRServer.appendLog("Found route to carrier ID " + route.getCarrierID() + " for: " + calledNumber.toString());
-                        Carrier carrier = LCRServer.carrierCache.get(route.getCarrierID() + "");
-                        // Now for each carrier, loop over the trunks
-                        for (TrunkGroup trunk : carrier.getTrunkGroups()) {
-                            final SipURI contactURI = buildContactURI(requestURI, carrier, trunk, SupportedPlatform.BROADWORKS);
-                                 //    final SipURI contactURI = SipURI.with().user(requestURI.getUser()).host(trunk.getIpAddress()).port(trunk.getPort()).build();
-                            contactHeaderBuilder.address(contactURI).headerParam("q", String.format("%01.1f", q));
-                            
-                            q = q - 0.1;
-                        }
-                    } else {
-                        this.appendLog("Q Value is less than 0.1 - skipping further routes");
-                        break;
-                    }
+                ContactTemplate template = ContactTemplate.forPlan(targetRoutes, 0.1);
+                for (ContactTemplate.Entry entry : template.getEntries()) {
+                    final SipURI contactURI = buildContactURI(requestURI, entry.getCarrier(), entry.getTrunk(), SupportedPlatform.BROADWORKS);
+                    contactHeaderBuilder.address(contactURI).headerParam("q", entry.getQ());
+                }
+                if (template.isTruncated()) {
+                    this.appendLog("Q Value is less than 0.1 - skipping further routes");
                 }
 
                 response.addHeader(contactHeaderBuilder.build());
 
-                final io.sipstack.netty.codec.sip.Connection bsConnection = stack.connect(msg.getViaHeader().getHost().toString(), 5060);
-                bsConnection.send(response);
+                final io.sipstack.netty.codec.sip.Connection bsConnection = this.replyConnection(msg, connection, stack);
+                this.sendResponse(msg, bsConnection, response);
 
             }
 
@@ -129,7 +107,7 @@ public final class BroadsoftPlatformHandler extends GenericPlatformHandler {
         } catch (Exception ex) {
             this.appendLog("Error finding route for phone number: " + requestURI.getUser().toString() + ": " + ex);
             SipResponse response = msg.toRequest().createResponse(503);
-            connection.send(response);
+            this.sendResponse(msg, connection, response);
         }
 
     }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import net.openlcr.common.classes.Route;
+import org.apache.log4j.Logger;
+
+/**
+ * Polls the routing tables for rows changed since the last pass and applies
+ * just those rows to the in-memory state, so rate deck edits go live in
+ * seconds without waiting out a cache TTL or reloading everything.
+ *
+ * Each table needs an updated_at column that MariaDB maintains for us:
+ *
+ *   ALTER TABLE routes ADD updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, ADD INDEX (updated_at);
+ *
+ * (same for carrier, trunkgroup, source_did_routes and blacklist_routes). A
+ * table without the column is logged once and skipped. Rows that are hard
+ * deleted don't show up here - deactivate them instead, or let the periodic
+ * full route table reload pick them up.
+ *
+ * Runs on the single maintenance thread, so it never races a full reload.
+ *
+ * @author mgamble
+ */
+public final class ChangeSync implements Runnable {
+
+    private final Logger logger;
+
+    private final Watermark routes = new Watermark("routes");
+    private final Watermark carriers = new Watermark("carrier");
+    private final Watermark trunkGroups = new Watermark("trunkgroup");
+    private final Watermark sourceDIDRoutes = new Watermark("source_did_routes");
+    private final Watermark blacklistRoutes = new Watermark("blacklist_routes");
+    /* Until init() has run the watermarks are at 1970 - a pass then would re-apply every row */
+    private volatile boolean initialized = false;
+
+    public ChangeSync(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Record where each table is right now. Call this before the initial full
+     * load so nothing committed in between is missed.
+     */
+    public void init() {
+        for (Watermark watermark : new Watermark[]{routes, carriers, trunkGroups, sourceDIDRoutes, blacklistRoutes}) {
+            try (Connection connection = LCRServer.getConnection();
+                    PreparedStatement pstmt = connection.prepareStatement("select max(updated_at) from " + watermark.table);
+                    ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next() && rs.getTimestamp(1) != null) {
+                    watermark.position = rs.getTimestamp(1);
+                }
+            } catch (SQLException ex) {
+                watermark.disable(ex, logger);
+            }
+        }
+        initialized = true;
+    }
+
+    @Override
+    public void run() {
+        if (!initialized) {
+            return;
+        }
+        try {
+            syncRoutes();
+            syncCarriers();
+            syncTrunkGroups();
+            syncSourceDIDRoutes();
+            syncBlacklistRoutes();
+        } catch (Exception ex) {
+            logger.error("Change sync failed - will retry next pass: " + ex, ex);
+        }
+    }
+
+    private void syncRoutes() throws SQLException {
+        if (!routes.enabled) {
+            return;
+        }
+        ArrayList<Route> upserts = new ArrayList<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        Changes changes = routes.begin();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string, routes.active, carrier.active as carrier_active, routes.updated_at from routes left join carrier on carrier.id = routes.carrier_id where routes.updated_at >= ?")) {
+            pstmt.setTimestamp(1, routes.position);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (!changes.accept(rs.getTimestamp("updated_at"))) {
+                        continue;
+                    }
+                    collectRoute(rs, upserts, removed);
+                }
+            }
+        } catch (SQLException ex) {
+            routes.disable(ex, logger);
+            return;
+        }
+        changes.commit();
+        if (!upserts.isEmpty() || !removed.isEmpty()) {
+            LCRServer.applyRouteChanges(upserts, removed);
+            if (routes.advanced) {
+                logger.info("Change sync: applied " + upserts.size() + " route updates and " + removed.size() + " route removals");
+            }
+        }
+    }
+
+    private void syncCarriers() throws SQLException {
+        if (!carriers.enabled) {
+            return;
+        }
+        Set<Integer> changed = new HashSet<>();
+        Changes changes = carriers.begin();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select id, updated_at from carrier where updated_at >= ?")) {
+            pstmt.setTimestamp(1, carriers.position);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (changes.accept(rs.getTimestamp("updated_at"))) {
+                        changed.add(rs.getInt("id"));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            carriers.disable(ex, logger);
+            return;
+        }
+        if (changed.isEmpty()) {
+            changes.commit();
+            return;
+        }
+        reloadCarriers(changed);
+        changes.commit();
+        if (carriers.advanced) {
+            logger.info("Change sync: reloaded " + changed.size() + " carriers");
+        }
+    }
+
+    /* Reload changed carriers - a carrier going active / inactive takes all of its routes with it */
+    static void reloadCarriers(Collection<Integer> carrierIDs) throws SQLException {
+        ArrayList<Route> upserts = new ArrayList<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string, routes.active, carrier.active as carrier_active from routes, carrier where carrier.id = routes.carrier_id and carrier.id = ?")) {
+            for (Integer carrierID : carrierIDs) {
+                pstmt.setInt(1, carrierID);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        collectRoute(rs, upserts, removed);
+                    }
+                }
+            }
+        }
+        /* Carriers first - a route is never live for a carrier the carrier table doesn't have yet */
+        LCRServer.applyCarrierChanges(carrierIDs);
+        LCRServer.applyRouteChanges(upserts, removed);
+    }
+
+    /* Reload one route by ID - a row that's gone from the table (hard deleted) is removed */
+    static void reloadRoute(int routeID) throws SQLException {
+        ArrayList<Route> upserts = new ArrayList<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string, routes.active, carrier.active as carrier_active from routes left join carrier on carrier.id = routes.carrier_id where routes.id = ?")) {
+            pstmt.setInt(1, routeID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    collectRoute(rs, upserts, removed);
+                }
+            }
+        }
+        if (upserts.isEmpty() && removed.isEmpty()) {
+            removed.add(routeID);
+        }
+        LCRServer.applyRouteChanges(upserts, removed);
+    }
+
+    private void syncTrunkGroups() {
+        if (!trunkGroups.enabled) {
+            return;
+        }
+        Set<Integer> changed = new HashSet<>();
+        Changes changes = trunkGroups.begin();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select id, carrier_id, updated_at from trunkgroup where updated_at >= ?")) {
+            pstmt.setTimestamp(1, trunkGroups.position);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (changes.accept(rs.getTimestamp("updated_at"))) {
+                        changed.add(rs.getInt("carrier_id"));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            trunkGroups.disable(ex, logger);
+            return;
+        }
+        changes.commit();
+        LCRServer.applyCarrierChanges(changed);
+        if (trunkGroups.advanced) {
+            logger.info("Change sync: reloaded trunk groups for " + changed.size() + " carriers");
+        }
+    }
+
+    private void syncSourceDIDRoutes() {
+        if (!sourceDIDRoutes.enabled) {
+            return;
+        }
+        Set<String> changed = billingNumbersChangedSince(sourceDIDRoutes);
+        LCRServer.applySourceDIDRouteChanges(changed);
+        if (sourceDIDRoutes.advanced) {
+            logger.info("Change sync: reloaded source DID routes for " + changed.size() + " billing numbers");
+        }
+    }
+
+    private void syncBlacklistRoutes() {
+        if (!blacklistRoutes.enabled) {
+            return;
+        }
+        Set<String> changed = billingNumbersChangedSince(blacklistRoutes);
+        LCRServer.applyBlacklistChanges(changed);
+        if (blacklistRoutes.advanced) {
+            logger.info("Change sync: reloaded carrier blacklist for " + changed.size() + " billing numbers");
+        }
+    }
+
+    private Set<String> billingNumbersChangedSince(Watermark watermark) {
+        Set<String> changed = new HashSet<>();
+        Changes changes = watermark.begin();
+        try (Connection connection = LCRServer.getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select id, billing_number, updated_at from " + watermark.table + " where updated_at >= ?")) {
+            pstmt.setTimestamp(1, watermark.position);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (changes.accept(rs.getTimestamp("updated_at"))) {
+                        changed.add(rs.getString("billing_number"));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            watermark.disable(ex, logger);
+            return changed;
+        }
+        changes.commit();
+        return changed;
+    }
+
+    private static void collectRoute(ResultSet rs, ArrayList<Route> upserts, ArrayList<Integer> removed) throws SQLException {
+        if (rs.getInt("active") > 0 && rs.getInt("carrier_active") > 0) {
+            upserts.add(LCRServer.readRoute(rs, rs.getString("digits"), rs.getDouble("price")));
+        } else {
+            removed.add(rs.getInt("id"));
+        }
+    }
+
+    /**
+     * Where we're up to in one table. updated_at only has one second
+     * resolution, so a row can change twice within the second we last saw -
+     * we query with >= and apply every row at the watermark again each pass.
+     * That's safe, every apply path re-reads the row, and it's only the rows
+     * of the latest second until something newer comes along.
+     */
+    static final class Watermark {
+
+        final String table;
+        Timestamp position = new Timestamp(0);
+        /* The last pass found rows past the old position */
+        boolean advanced;
+        boolean enabled = true;
+
+        Watermark(String table) {
+            this.table = table;
+        }
+
+        Changes begin() {
+            return new Changes(this);
+        }
+
+        /* Schema problems (SQLSTATE class 42 - no such column / table) switch the table off, anything else just skips this pass */
+        void disable(SQLException ex, Logger logger) {
+            if (ex.getSQLState() != null && ex.getSQLState().startsWith("42")) {
+                enabled = false;
+                logger.warn("Change sync disabled for table " + table + " (does it have an updated_at column?): " + ex);
+            } else {
+                logger.warn("Change sync could not poll table " + table + " - will retry next pass: " + ex);
+            }
+        }
+    }
+
+    static final class Changes {
+
+        final Watermark watermark;
+        Timestamp position;
+        boolean newRows;
+
+        Changes(Watermark watermark) {
+            this.watermark = watermark;
+            this.position = watermark.position;
+        }
+
+        /* Returns true if this row should be applied - any row at or past the watermark */
+        boolean accept(Timestamp updatedAt) {
+            if (updatedAt == null) {
+                return false;
+            }
+            if (updatedAt.after(watermark.position)) {
+                newRows = true;
+            }
+            if (updatedAt.after(position)) {
+                position = updatedAt;
+            }
+            return true;
+        }
+
+        void commit() {
+            watermark.position = position;
+            watermark.advanced = newRows;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.TrunkGroup;
+
+/**
+ * The trunks we offer in a 302, with their q values, worked out once per
+ * distinct carrier order and reused for every call that routes the same way.
+ * For Metaswitch the per-trunk tail of the Contact header (";dtg=...>;q=...")
+ * is rendered up front too, so building the header is just splicing the
+ * request URI in front of each one.
+ *
+ * Templates hold carrier and trunk group details, so when a carrier's entry in
+ * carrierCache is replaced or dropped the templates offering that carrier go
+ * too - unless the new entry offers exactly the same trunks, which is the
+ * usual case for a bulk reload (see carrierRemoved). A build that read a
+ * carrier just before it changed is never cached (see forPlan).
+ *
+ * @author mgamble
+ */
+public final class ContactTemplate {
+
+    private static final Cache<String, ContactTemplate> templates = CacheBuilder.newBuilder().maximumSize(10000).recordStats().build();
+    /* Bumped before templates are dropped - a build that overlaps a bump may have read the old carrier */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private final int[] carrierIDs;
+    private final Entry[] entries;
+    private final boolean truncated;
+    private final int renderedLength;
+
+    private ContactTemplate(int[] carrierIDs, Entry[] entries, boolean truncated) {
+        this.carrierIDs = carrierIDs;
+        this.entries = entries;
+        this.truncated = truncated;
+        int length = 0;
+        for (Entry entry : entries) {
+            length += entry.dtgSuffix.length() + 2;
+        }
+        this.renderedLength = length;
+    }
+
+    /**
+     * Template for a route plan. Carriers are offered in plan order, each one
+     * once, with q starting at 1.0 and dropping 0.1 per trunk - and no new
+     * carrier is started once q is at or below minQ.
+     */
+    public static ContactTemplate forPlan(Iterable<Route> plan, double minQ) throws ExecutionException {
+        int[] carriers = new int[8];
+        int count = 0;
+        StringBuilder key = new StringBuilder(48).append(minQ);
+        for (Route route : plan) {
+            int carrierID = route.getCarrierID();
+            boolean seen = false;
+            for (int i = 0; i < count; i++) {
+                if (carriers[i] == carrierID) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                if (count == carriers.length) {
+                    carriers = Arrays.copyOf(carriers, count * 2);
+                }
+                carriers[count++] = carrierID;
+                key.append(',').append(carrierID);
+            }
+        }
+        String templateKey = key.toString();
+        ContactTemplate template = templates.getIfPresent(templateKey);
+        if (template == null) {
+            long builtAt = generation.get();
+            template = build(carriers, count, minQ);
+            templates.put(templateKey, template);
+            /* A carrier changed while we built - this call can use it, but the cache can't keep it */
+            if (generation.get() != builtAt) {
+                templates.asMap().remove(templateKey, template);
+            }
+        }
+        return template;
+    }
+
+    private static ContactTemplate build(int[] carriers, int count, double minQ) throws ExecutionException {
+        ArrayList<Entry> entries = new ArrayList<>();
+        boolean truncated = false;
+        double q = 1;
+        for (int i = 0; i < count; i++) {
+            if (q > minQ) {
+                Carrier carrier = LCRServer.carrierCache.get(carriers[i] + "");
+                // Now for each carrier, loop over the trunks
+                for (TrunkGroup trunk : carrier.getTrunkGroups()) {
+                    entries.add(new Entry(carrier, trunk, String.format("%01.1f", q)));
+                    q = q - 0.1;
+                }
+            } else {
+                truncated = true;
+                break;
+            }
+        }
+        return new ContactTemplate(Arrays.copyOf(carriers, count), entries.toArray(new Entry[0]), truncated);
+    }
+
+    public static void invalidateAll() {
+        generation.incrementAndGet();
+        templates.invalidateAll();
+    }
+
+    /**
+     * A carrier's carrierCache entry was replaced or dropped - called from the
+     * cache's removal listener, by which time the new entry (if any) is in.
+     */
+    public static void carrierRemoved(String key, Carrier old) {
+        Carrier current = LCRServer.carrierCache.getIfPresent(key);
+        if (current != null && sameContacts(old, current)) {
+            return;
+        }
+        int carrierID;
+        try {
+            carrierID = Integer.parseInt(key);
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        generation.incrementAndGet();
+        templates.asMap().values().removeIf(template -> template.offers(carrierID));
+    }
+
+    /* True if a template built from either carrier would come out the same */
+    static boolean sameContacts(Carrier a, Carrier b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getCarrierID() != b.getCarrierID() || a.isUseE164() != b.isUseE164()
+                || !Objects.equals(a.getCarrierName(), b.getCarrierName())) {
+            return false;
+        }
+        List<TrunkGroup> trunksA = a.getTrunkGroups() == null ? Collections.emptyList() : a.getTrunkGroups();
+        List<TrunkGroup> trunksB = b.getTrunkGroups() == null ? Collections.emptyList() : b.getTrunkGroups();
+        if (trunksA.size() != trunksB.size()) {
+            return false;
+        }
+        for (int i = 0; i < trunksA.size(); i++) {
+            TrunkGroup x = trunksA.get(i);
+            TrunkGroup y = trunksB.get(i);
+            if (!Objects.equals(x.getTrunkGroupID(), y.getTrunkGroupID()) || !Objects.equals(x.getIpAddress(), y.getIpAddress())
+                    || x.getPort() != y.getPort() || x.getPriority() != y.getPriority()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* True if the plan this template was built for includes the carrier */
+    public boolean offers(int carrierID) {
+        for (int id : carrierIDs) {
+            if (id == carrierID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static Cache<String, ContactTemplate> getCache() {
+        return templates;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /* True if we ran out of q values before offering every carrier in the plan */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public Entry[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * Render a Metaswitch Contact header value - the request URI with the
+     * trunk's dtg parameter added, once per trunk. The request URI must not
+     * already carry a dtg parameter.
+     */
+    public String renderMetaswitchContact(String requestURI) {
+        StringBuilder contact = new StringBuilder(renderedLength + entries.length * requestURI.length());
+        for (int i = 0; i < entries.length; i++) {
+            if (i > 0) {
+                contact.append(',');
+            }
+            contact.append('<').append(requestURI).append(entries[i].dtgSuffix);
+        }
+        return contact.toString();
+    }
+
+    public static final class Entry {
+
+        private final Carrier carrier;
+        private final TrunkGroup trunk;
+        private final String q;
+        private final String dtgSuffix;
+
+        Entry(Carrier carrier, TrunkGroup trunk, String q) {
+            this.carrier = carrier;
+            this.trunk = trunk;
+            this.q = q;
+            this.dtgSuffix = ";dtg=" + trunk.getTrunkGroupID() + ">;q=" + q;
+        }
+
+        public Carrier getCarrier() {
+            return carrier;
+        }
+
+        public TrunkGroup getTrunk() {
+            return trunk;
+        }
+
+        public String getQ() {
+            return q;
+        }
+    }
+}
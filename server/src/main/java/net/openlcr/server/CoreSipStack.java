@@ -16,6 +16,8 @@
  */
 package net.openlcr.server;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
@@ -24,6 +26,11 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
@@ -38,6 +45,10 @@ import io.sipstack.netty.codec.sip.SipMessageStreamDecoder;
 import io.sipstack.netty.codec.sip.UdpConnection;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
 
 /**
  * Bootstrap netty and setup the sip message encoder/decoder for basic SIP support.
@@ -46,6 +57,10 @@ import java.net.InetSocketAddress;
  * of SIP messages but it is the very first layer of a true SIP stack (see rfc3261 for the various
  * layers of SIP).
  * 
+ * UDP and TCP listen on the same address and share one handler. With epollEnabled (and the
+ * native transport available) UDP binds udpSockets SO_REUSEPORT sockets, one per event loop,
+ * and TCP runs on epoll too - otherwise everything is NIO.
+ * 
  * @author jonas@jonasborjesson.com
  */
 public class CoreSipStack {
@@ -54,9 +69,17 @@ public class CoreSipStack {
 
     private final int port;
 
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup();
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup();
-    private final EventLoopGroup udpGroup = new NioEventLoopGroup();
+    private final Logger logger;
+
+    private final boolean epoll;
+
+    private final int udpSockets;
+
+    private final boolean tcpEnabled;
+
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final EventLoopGroup udpGroup;
 
     /**
      * The TCP based bootstrap.
@@ -70,17 +93,45 @@ public class CoreSipStack {
 
     private Channel udpListeningPoint = null;
 
+    /**
+     * UDP "connections" we've handed out, so sending to the same peer again reuses one.
+     * The Via host is whatever the sender put there, so this is bounded and idle
+     * peers age out. Keyed by host:port as given, so a hit doesn't resolve it again.
+     */
+    private final Cache<String, Connection> udpConnections = CacheBuilder.newBuilder().maximumSize(10000).expireAfterAccess(10, TimeUnit.MINUTES).build();
+
     public CoreSipStack(final SimpleChannelInboundHandler<SipMessageEvent> handler, final String ip, final int port) {
+        this(handler, ip, port, new ServerConfiguration(), Logger.getLogger(CoreSipStack.class));
+    }
+
+    public CoreSipStack(final SimpleChannelInboundHandler<SipMessageEvent> handler, final String ip, final int port,
+            final ServerConfiguration serverConfig, final Logger logger) {
         this.ip = ip;
         this.port = port;
+        this.logger = logger;
+        this.tcpEnabled = serverConfig.isTcpEnabled();
+
+        this.epoll = serverConfig.isEpollEnabled() && Epoll.isAvailable();
+        if (serverConfig.isEpollEnabled() && !this.epoll) {
+            logger.warn("Native epoll transport not available - using NIO: " + Epoll.unavailabilityCause());
+        }
+        this.udpSockets = !this.epoll ? 1 : (serverConfig.getUdpSockets() > 0 ? serverConfig.getUdpSockets() : Runtime.getRuntime().availableProcessors());
+        if (this.epoll) {
+            this.udpGroup = new EpollEventLoopGroup(this.udpSockets);
+            this.bossGroup = new EpollEventLoopGroup(1);
+            this.workerGroup = new EpollEventLoopGroup(serverConfig.getTcpWorkerThreads());
+        } else {
+            this.udpGroup = new NioEventLoopGroup(this.udpSockets);
+            this.bossGroup = new NioEventLoopGroup(1);
+            this.workerGroup = new NioEventLoopGroup(serverConfig.getTcpWorkerThreads());
+        }
 
         this.bootstrap = createUDPListeningPoint(handler);
         this.serverBootstrap = createTCPListeningPoint(handler);
     }
 
     public Connection connect(final String ip, final int port) {
-        final InetSocketAddress remoteAddress = new InetSocketAddress(ip, port);
-        return new UdpConnection(this.udpListeningPoint, remoteAddress);
+        return this.udpConnections.asMap().computeIfAbsent(ip + ":" + port, key -> new UdpConnection(this.udpListeningPoint, new InetSocketAddress(ip, port)));
     }
 
     public Connection connect(final Buffer ip, final int port) {
@@ -90,8 +141,18 @@ public class CoreSipStack {
     public void run() throws Exception {
         try {
             final InetSocketAddress socketAddress = new InetSocketAddress(this.ip, this.port);
-            this.udpListeningPoint = this.bootstrap.bind(socketAddress).sync().channel();
-            this.serverBootstrap.bind(socketAddress).sync().channel().closeFuture().await();
+            final List<Channel> channels = new ArrayList<>();
+            for (int i = 0; i < this.udpSockets; i++) {
+                channels.add(this.bootstrap.bind(socketAddress).sync().channel());
+            }
+            this.udpListeningPoint = channels.get(0);
+            if (this.tcpEnabled) {
+                channels.add(this.serverBootstrap.bind(socketAddress).sync().channel());
+            }
+            this.logger.info("SIP listening on " + socketAddress + " - " + this.udpSockets + " UDP socket(s)" + (this.tcpEnabled ? " and TCP" : "") + " using " + (this.epoll ? "native epoll" : "NIO"));
+            for (final Channel channel : channels) {
+                channel.closeFuture().await();
+            }
         } finally {
             this.bossGroup.shutdownGracefully();
             this.workerGroup.shutdownGracefully();
@@ -102,7 +163,7 @@ public class CoreSipStack {
     private Bootstrap createUDPListeningPoint(final SimpleChannelInboundHandler<SipMessageEvent> handler) {
         final Bootstrap b = new Bootstrap();
         b.group(this.udpGroup)
-        .channel(NioDatagramChannel.class)
+        .channel(this.epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
         .handler(new ChannelInitializer<DatagramChannel>() {
             @Override
             protected void initChannel(final DatagramChannel ch) throws Exception {
@@ -112,6 +173,9 @@ public class CoreSipStack {
                 pipeline.addLast("handler", handler);
             }
         });
+        if (this.epoll) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
         return b;
     }
 
@@ -119,7 +183,7 @@ public class CoreSipStack {
         final ServerBootstrap b = new ServerBootstrap();
 
         b.group(this.bossGroup, this.workerGroup)
-        .channel(NioServerSocketChannel.class)
+        .channel(this.epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
         .childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(final SocketChannel ch) throws Exception {
@@ -136,4 +200,4 @@ public class CoreSipStack {
         return b;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker in front of the connection pool. Every route data query
+ * goes through LCRServer.getConnection(), and while the database is failing
+ * that fails straight away instead of each caller waiting out Hikari's
+ * connection timeout - the in-memory tables and caches keep their last good
+ * contents and go on answering calls, just no longer fresh.
+ *
+ * Outcomes are counted over the last windowSize calls. A call is a failed
+ * checkout, or a statement execute on a connection the breaker handed out -
+ * so a query cut off by its query timeout (or the driver's socket timeout)
+ * counts as a failure straight away, not just once the pool starts failing
+ * checkouts. A connection closed without running anything counts its
+ * checkout as the success. Once failureRatePercent of at least minimumCalls
+ * calls in the window have failed the breaker opens for openMillis. After
+ * that it goes half open and lets one connection through as a probe - the
+ * change sync or a cache refresh will usually be first - whose first call
+ * closes it again or re-opens it.
+ *
+ * @author mgamble
+ */
+public final class DatabaseBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final Logger logger;
+    private final boolean[] window;
+    private final int failureRatePercent;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /* Guarded by this */
+    private int position;
+    private int calls;
+    private int failures;
+    private long openUntil;
+    private boolean probeInFlight;
+
+    private volatile State state = State.CLOSED;
+    private volatile long lastSuccessMillis = System.currentTimeMillis();
+
+    public DatabaseBreaker(ServerConfiguration serverConfig, Logger logger) {
+        this.logger = logger;
+        this.window = new boolean[Math.max(1, serverConfig.getDbBreakerWindowSize())];
+        this.failureRatePercent = serverConfig.getDbBreakerFailureRatePercent();
+        this.minimumCalls = Math.min(window.length, Math.max(1, serverConfig.getDbBreakerMinimumCalls()));
+        this.openMillis = serverConfig.getDbBreakerOpenSeconds() * 1000L;
+    }
+
+    /**
+     * Check a connection out of dataSource, or fail immediately with a
+     * SQLTransientConnectionException while the breaker is open. The
+     * connection reports how its statements go back to the breaker.
+     */
+    public Connection getConnection(DataSource dataSource) throws SQLException {
+        if (!allowRequest()) {
+            rejected.incrementAndGet();
+            throw new SQLTransientConnectionException("Database circuit breaker open - serving last known good routing data", "08000");
+        }
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException ex) {
+            onFailure(ex);
+            throw ex;
+        }
+        return track(connection);
+    }
+
+    private Connection track(Connection connection) {
+        AtomicBoolean reported = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(DatabaseBreaker.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("close") && !reported.getAndSet(true)) {
+                onSuccess();
+            }
+            Object result = invoke(connection, method, args);
+            if (result instanceof Statement && method.getReturnType().isInterface()) {
+                return track((Statement) result, method.getReturnType(), reported);
+            }
+            return result;
+        });
+    }
+
+    /* Statement, PreparedStatement or CallableStatement - whichever the connection method returns */
+    private Statement track(Statement statement, Class<?> type, AtomicBoolean reported) {
+        return (Statement) Proxy.newProxyInstance(DatabaseBreaker.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (!method.getName().startsWith("execute")) {
+                return invoke(statement, method, args);
+            }
+            Object result;
+            try {
+                result = invoke(statement, method, args);
+            } catch (SQLException ex) {
+                reported.set(true);
+                onFailure(ex);
+                throw ex;
+            }
+            reported.set(true);
+            onSuccess();
+            return result;
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                logger.info("Database circuit breaker half open - probing the database");
+                probeInFlight = true;
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        lastSuccessMillis = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            probeInFlight = false;
+            resetWindow();
+            logger.info("Database circuit breaker closed - database is answering again");
+            return;
+        }
+        record(false);
+    }
+
+    private synchronized void onFailure(SQLException ex) {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            open("probe failed: " + ex);
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= minimumCalls && failures * 100 >= failureRatePercent * calls) {
+            open(failures + " of the last " + calls + " database calls failed, last: " + ex);
+        }
+    }
+
+    private void record(boolean failed) {
+        if (calls == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failed;
+        if (failed) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void resetWindow() {
+        position = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    private void open(String reason) {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        opened.incrementAndGet();
+        resetWindow();
+        logger.error("Database circuit breaker open for " + (openMillis / 1000) + "s - routing from last known good data (" + reason + ")");
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /* True while routing data may be behind the database */
+    public boolean isStale() {
+        return state != State.CLOSED;
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getLastSuccessMillis() {
+        return lastSuccessMillis;
+    }
+}
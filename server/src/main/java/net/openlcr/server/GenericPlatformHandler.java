@@ -29,6 +29,8 @@ import net.openlcr.common.classes.Route;
 import net.openlcr.common.classes.RouteModification;
 import net.openlcr.common.classes.SupportedPlatform;
 import net.openlcr.common.classes.TrunkGroup;
+import net.openlcr.server.utils.LogMessage;
+import net.openlcr.server.utils.NumberNormalizer;
 import org.apache.log4j.Logger;
 
 /**
@@ -51,9 +53,12 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
     }
    
     
+    protected Logger getLogger() {
+        return logger;
+    }
+
     public void appendLog(String logMessage) {
         if (this.logger != null) {
-        System.out.println(logMessage);
         logger.info(logMessage);
         } else {
             System.out.println("DANGER DANGER DANGER - LOGGER IS NULL");
@@ -61,9 +66,20 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
         
     }
     
+    /* "{}" placeholders - the message is only put together if info is on, and then on the log writer thread */
+    public void appendLog(String pattern, Object arg) {
+        if (this.logger != null && logger.isInfoEnabled()) {
+            logger.info(new LogMessage(pattern, arg));
+        }
+    }
+    
+    public void appendLog(String pattern, Object arg1, Object arg2) {
+        if (this.logger != null && logger.isInfoEnabled()) {
+            logger.info(new LogMessage(pattern, arg1, arg2));
+        }
+    }
     
     public void appendLog(String logMessage, Exception ex) {
-        System.out.println(logMessage);
         logger.info(logMessage, ex);
     }
     
@@ -72,23 +88,46 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
     
     @Override
     public void run() {
+        this.handle(this.msg, this.connection, this.stack);
+    }
+    
+    /* Dispatch one message - handlers keep no per-call state, so a single instance can be shared for inline handling */
+    public void handle(SipMessage msg, Connection connection, CoreSipStack stack) {
         
         if (msg.isOptions()) {
-            this.handleOptions(this.msg, this.connection, this.stack);
+            this.handleOptions(msg, connection, stack);
         } else if (msg.isAck()) {
             return;
         } else if (msg.isInvite()) {
-            this.handleInvite(this.msg, this.connection, this.stack);
+            long start = System.nanoTime();
+            if (this.routeInvite(msg, connection, stack)) {
+                Metrics.INVITE.recordSince(start);
+            }
         } else if (msg.isBye()) {
-            this.handleBye(this.msg, this.connection, this.stack);
+            this.handleBye(msg, connection, stack);
         } else if (msg.isCancel()) {
             this.handleCancel(msg, connection, stack);
         } else {
-            this.appendLog("Got SIP method with no handler configured: " + msg.getMethod().toString());
+            this.appendLog("Got SIP method with no handler configured: {}", msg.getMethod());
         }
         
     }
     
+    /* Answer an INVITE - false if it was handed to another thread, which counts it in Metrics.INVITE when it's done */
+    protected boolean routeInvite(SipMessage msg, Connection connection, CoreSipStack stack) {
+        this.handleInvite(msg, connection, stack);
+        return true;
+    }
+    
+    /* 200 once we're ready to route at full speed - 503 while the hot keys are still warming, so the softswitch keeps calls away a little longer */
+    protected SipResponse optionsResponse(SipMessage msg) {
+        if (LCRServer.isWarmingUp()) {
+            this.appendLog("Got OPTIONS request from {} - responding 503, still warming up", msg.getViaHeader().getHost());
+            return msg.createResponse(503);
+        }
+        return msg.createResponse(200);
+    }
+
     @Override
     public void handleOptions(SipMessage msg, Connection connection, CoreSipStack stack) {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
@@ -143,16 +182,30 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
         connection.send(response);
     }
     
+    /* Send a response to an INVITE and remember it, so retransmits of the INVITE get it replayed instead of routed again */
+    public void sendResponse(SipMessage msg, Connection connection, SipResponse response) {
+        long start = System.nanoTime();
+        LCRServer.getTransactions().sent(msg, response);
+        connection.send(response);
+        Metrics.SEND.recordSince(start);
+    }
+    
+    /* Broadworks / M6 want UDP answers on 5060 of the Via host - over TCP we answer on the connection the request came in on */
+    public Connection replyConnection(SipMessage msg, Connection connection, CoreSipStack stack) {
+        if (connection.isTCP() || stack == null) {
+            return connection;
+        }
+        return stack.connect(msg.getViaHeader().getHost().toString(), 5060);
+    }
+    
     public SipURI buildContactURI(SipURI requestURI, Carrier carrier, TrunkGroup trunk, SupportedPlatform platform) throws NumberParseException {
         SipURI contactURI = null;
         if (carrier.isUseE164()) {
             contactURI = SipURI.with().user(requestURI.getUser()).host(trunk.getIpAddress()).port(trunk.getPort()).build();
         } else {
             // Use libphonenumber to convert to dialable format
-            PhoneNumber calledNumber = phoneUtil.parse(requestURI.getUser().toString(), LCRServer.getConfiguration().getLocale());
-            String formattedNumber = phoneUtil.formatOutOfCountryCallingNumber(calledNumber, LCRServer.getConfiguration().getLocale());
-            formattedNumber = formattedNumber.replace(" ", "");
-            formattedNumber = formattedNumber.replace("-", "");
+            PhoneNumber calledNumber = NumberNormalizer.parse(requestURI.getUser().toString(), LCRServer.getConfiguration().getLocale());
+            String formattedNumber = NumberNormalizer.formatDialable(calledNumber, LCRServer.getConfiguration().getLocale(), false);
             /* Now do any prepend/append needed */
             
             contactURI = SipURI.with().user(formattedNumber).host(trunk.getIpAddress()).port(trunk.getPort()).build();
@@ -172,15 +225,11 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
             contactURI = SipURI.with().user(originalUser).host(trunk.getIpAddress()).port(trunk.getPort()).build();
         } else {
             // Use libphonenumber to convert to dialable format
-            PhoneNumber calledNumber = phoneUtil.parse(originalUser, LCRServer.getConfiguration().getLocale());
-            String formattedNumber = phoneUtil.formatOutOfCountryCallingNumber(calledNumber, LCRServer.getConfiguration().getLocale());
-            formattedNumber = formattedNumber.replace(" ", "");
-            formattedNumber = formattedNumber.replace("-", "");
-            formattedNumber = formattedNumber.replace(")", "");
-            formattedNumber = formattedNumber.replace("(", "");
+            PhoneNumber calledNumber = NumberNormalizer.parse(originalUser, LCRServer.getConfiguration().getLocale());
+            String formattedNumber = NumberNormalizer.formatDialable(calledNumber, LCRServer.getConfiguration().getLocale(), true);
             /* Now do any prepend/append needed */
             if (route.getRouteModification() != RouteModification.NONE) {
-                this.appendLog("Route modification requested: " + route.getRouteModification().toString() + " - " + route.getModificationString());
+                this.appendLog("Route modification requested: {} - {}", route.getRouteModification(), route.getModificationString());
                 switch (route.getRouteModification()) {
                     case PREPEND:
                         formattedNumber = route.getModificationString().concat(formattedNumber);
@@ -193,9 +242,9 @@ public abstract class GenericPlatformHandler implements PlatformHandler, Runnabl
                         break;
                 }
                 
-                this.appendLog("Finished modification - new target # is: " + formattedNumber);
+                this.appendLog("Finished modification - new target # is: {}", formattedNumber);
             } else {
-                this.appendLog("No route modification requested: " + route.getRouteModification());
+                this.appendLog("No route modification requested: {}", route.getRouteModification());
             }
             contactURI = SipURI.with().user(formattedNumber).host(trunk.getIpAddress()).port(trunk.getPort()).build();
         }
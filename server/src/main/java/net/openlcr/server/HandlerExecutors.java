@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Builds the executor that SIP messages are handled on, picked by the
+ * executionMode setting:
+ *
+ *   platform - a fixed pool of workerThreads threads (the default)
+ *   virtual  - a new virtual thread per message, so a slow database only
+ *              parks handlers instead of using up the pool. Needs a Java 21+
+ *              runtime - build with -Pjdk21 - and falls back to platform
+ *              threads anywhere else.
+ *
+ * Virtual threads are looked up reflectively so the normal Java 17 build
+ * still compiles and runs.
+ *
+ * Either way admission is bounded by admissionQueueSize - messages waiting
+ * for a pool thread, or handlers in flight on virtual threads. Past that,
+ * execute() throws RejectedExecutionException and the caller sheds the load.
+ *
+ * @author mgamble
+ */
+public final class HandlerExecutors {
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private HandlerExecutors() {
+    }
+
+    public static ExecutorService create(ServerConfiguration serverConfig, Logger logger) {
+        if (VIRTUAL.equalsIgnoreCase(serverConfig.getExecutionMode())) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.info("Handling SIP messages on virtual threads - at most " + serverConfig.getAdmissionQueueSize() + " at once");
+                return new AdmissionLimitedExecutor(executor, serverConfig.getAdmissionQueueSize());
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("Virtual threads need Java 21 or later (running " + System.getProperty("java.version") + ") - using " + serverConfig.getWorkerThreads() + " platform threads instead");
+            }
+        } else if (!PLATFORM.equalsIgnoreCase(serverConfig.getExecutionMode())) {
+            logger.warn("Unknown executionMode \"" + serverConfig.getExecutionMode() + "\" - using platform threads");
+        }
+        logger.info("Handling SIP messages on " + serverConfig.getWorkerThreads() + " platform threads - at most " + serverConfig.getAdmissionQueueSize() + " waiting");
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(serverConfig.getWorkerThreads(), serverConfig.getWorkerThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(serverConfig.getAdmissionQueueSize()),
+                r -> new Thread(r, "openlcr-worker-" + count.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /* Messages waiting for a pool thread - virtual threads never wait */
+    static int getQueued(ExecutorService executor) {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /* Messages being handled right now */
+    static int getActive(ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getActiveCount();
+        }
+        return executor instanceof AdmissionLimitedExecutor ? ((AdmissionLimitedExecutor) executor).getInFlight() : 0;
+    }
+
+    /**
+     * Caps how many tasks can be running on the wrapped executor at once -
+     * virtual threads have no pool to fill up, so this is their queue limit.
+     */
+    static final class AdmissionLimitedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+        private final int limit;
+
+        AdmissionLimitedExecutor(ExecutorService delegate, int limit) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(limit);
+            this.limit = limit;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Admission limit of " + limit + " reached");
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+
+        /* Handlers currently admitted */
+        int getInFlight() {
+            return limit - permits.availablePermits();
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers which dialed numbers, billing numbers and carriers traffic
+ * actually hits, so a restarted node can load just those before it tells
+ * the softswitch it's up - a rolling restart then doesn't send the first few
+ * thousand calls on each node to the database.
+ *
+ * Lookups are sampled (1 in 16) into a bounded count table, so recording
+ * costs a random number on most calls. Every save writes the hottest
+ * maxKeys of each kind to the file and halves the counts, so long-running
+ * favourites stay while a quiet hour can't push them all out. The file is
+ * plain text, one "kind key" per line, hottest first:
+ *
+ *   route 14165551212
+ *   sourcedid 4165550100
+ *   carrier 12
+ *
+ * @author mgamble
+ */
+public final class HotKeys {
+
+    private static final int SAMPLE_MASK = 15;
+
+    private final Logger logger;
+    private final File file;
+    private final int maxKeys;
+    private final Map<String, LongAdder> routes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> sourceDIDs = new ConcurrentHashMap<>();
+
+    public HotKeys(File file, int maxKeys, Logger logger) {
+        this.file = file;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.logger = logger;
+    }
+
+    public void recordRoute(String targetNumber) {
+        if (sampled()) {
+            count(routes, targetNumber);
+        }
+    }
+
+    public void recordSourceDID(long billingNumber) {
+        if (sampled()) {
+            count(sourceDIDs, String.valueOf(billingNumber));
+        }
+    }
+
+    private static boolean sampled() {
+        return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    }
+
+    /* Tracks up to four times what we keep, so keys still climbing have room to overtake */
+    private void count(Map<String, LongAdder> counts, String key) {
+        LongAdder counter = counts.get(key);
+        if (counter == null) {
+            if (counts.size() >= maxKeys * 4) {
+                return;
+            }
+            counter = counts.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Write the hottest keys (and every carrier in carrierCache - there are
+     * only ever a few hundred) to the file, replacing it in one rename.
+     */
+    public synchronized void save() {
+        try {
+            List<String> hotRoutes = hottest(routes);
+            List<String> hotSourceDIDs = hottest(sourceDIDs);
+            File directory = file.getAbsoluteFile().getParentFile();
+            File temporary = File.createTempFile(file.getName() + ".", ".tmp", directory);
+            try {
+                try (PrintWriter out = new PrintWriter(temporary, StandardCharsets.US_ASCII.name())) {
+                    for (String key : hotRoutes) {
+                        out.println("route " + key);
+                    }
+                    for (String key : hotSourceDIDs) {
+                        out.println("sourcedid " + key);
+                    }
+                    for (String key : LCRServer.carrierCache.asMap().keySet()) {
+                        out.println("carrier " + key);
+                    }
+                }
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Saved " + hotRoutes.size() + " hot routes and " + hotSourceDIDs.size() + " hot source DIDs to " + file);
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not save hot keys to " + file + ": " + ex);
+        }
+    }
+
+    /* The top maxKeys by count, hottest first - and age the table so it follows the traffic */
+    private List<String> hottest(Map<String, LongAdder> counts) {
+        List<Map.Entry<String, Long>> snapshot = new ArrayList<>(counts.size());
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            snapshot.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+        }
+        snapshot.sort(Comparator.comparing((Map.Entry<String, Long> entry) -> entry.getValue()).reversed());
+        List<String> keys = new ArrayList<>(Math.min(maxKeys, snapshot.size()));
+        for (int i = 0; i < snapshot.size(); i++) {
+            Map.Entry<String, Long> entry = snapshot.get(i);
+            if (i < maxKeys && entry.getValue() > 1) {
+                keys.add(entry.getKey());
+                counts.get(entry.getKey()).add(-(entry.getValue() / 2));
+            } else {
+                counts.remove(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Load everything in the file through the normal lookup paths (so into
+     * whichever caches are in use), threads at a time, giving up after
+     * timeoutSeconds. The keys start out counted, so a save soon after a
+     * restart doesn't forget them before traffic has built up again. Returns how many keys were loaded.
+     */
+    public int warm(int threads, int timeoutSeconds) {
+        if (!file.isFile()) {
+            logger.info("No hot keys file " + file + " yet - nothing to warm");
+            return 0;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        } catch (IOException ex) {
+            logger.warn("Could not read hot keys from " + file + ": " + ex);
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService warmers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "openlcr-warmup-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger loaded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (String line : lines) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 2 || !RouteTable.isDigits(fields[1])) {
+                continue;
+            }
+            seed(fields[0], fields[1]);
+            warmers.execute(() -> {
+                try {
+                    warmKey(fields[0], fields[1]);
+                    loaded.incrementAndGet();
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        warmers.shutdown();
+        try {
+            if (!warmers.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                warmers.shutdownNow();
+                logger.warn("Hot key warm-up still running after " + timeoutSeconds + "s - carrying on without the rest");
+            }
+        } catch (InterruptedException ex) {
+            warmers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Warmed " + loaded.get() + " hot keys from " + file + " (" + failed.get() + " failed) on " + threads + " threads in " + (System.currentTimeMillis() - start) + "ms");
+        return loaded.get();
+    }
+
+    /* Enough to survive the next save - after that they have to earn their place */
+    private void seed(String kind, String key) {
+        Map<String, LongAdder> counts = kind.equals("route") ? routes : kind.equals("sourcedid") ? sourceDIDs : null;
+        if (counts != null && counts.size() < maxKeys * 4) {
+            counts.computeIfAbsent(key, k -> new LongAdder()).add(2);
+        }
+    }
+
+    private static void warmKey(String kind, String key) throws Exception {
+        switch (kind) {
+            case "route":
+                for (net.openlcr.common.classes.Route route : LCRServer.lookupRoutes(key)) {
+                    LCRServer.carrierCache.get(String.valueOf(route.getCarrierID()));
+                }
+                break;
+            case "sourcedid":
+                long billingNumber = Long.parseLong(key);
+                LCRServer.getSourceDIDOverrides(billingNumber);
+                LCRServer.getSourceDIDBlacklist(billingNumber);
+                break;
+            case "carrier":
+                LCRServer.carrierCache.get(key);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.SipResponse;
+import io.pkts.packet.sip.header.SipHeader;
+import io.sipstack.netty.codec.sip.Connection;
+import io.sipstack.netty.codec.sip.SipMessageEvent;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author mgamble
+ */
+@Sharable // (1)
+public final class InboundHandler extends SimpleChannelInboundHandler<SipMessageEvent> { // (2)
+
+    private Logger logger;
+  //  private PlatformHandler platformHandler;
+    ExecutorService executor;
+    private CoreSipStack stack;
+    /* Shared handler for messages answered on the event loop */
+    private GenericPlatformHandler inlineHandler;
+    private final boolean inlineRouting;
+    private final boolean dropOnOverload;
+    private final String retryAfter;
+    private final AtomicLong rejectedInvites = new AtomicLong();
+
+    public InboundHandler() {
+        //executor = Executors.newCachedThreadPool();
+        executor = HandlerExecutors.create(LCRServer.getServerConfiguration(), LCRServer.logger);
+        /* Routing logs every call - without the async appender that's a file write on the event loop */
+        inlineRouting = LCRServer.getServerConfiguration().isInlineRoutingEnabled() && LCRServer.logAppender != null;
+        if (LCRServer.getServerConfiguration().isInlineRoutingEnabled() && !inlineRouting) {
+            LCRServer.logger.warn("inlineRoutingEnabled needs asyncLogging - routing on the handler threads instead");
+        }
+        dropOnOverload = "drop".equalsIgnoreCase(LCRServer.getServerConfiguration().getOverloadAction());
+        retryAfter = String.valueOf(LCRServer.getServerConfiguration().getOverloadRetryAfterSeconds());
+        // TODO Auto-generated constructor stub
+    }
+
+    public void setStack(final CoreSipStack stack) {
+        this.stack = stack;
+    }
+
+     public void appendLog(String logMessage) {
+  //      System.out.println(logMessage);
+        logger.info(logMessage);
+    }
+     
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+        MetaswitchPlatformHandler handler = new MetaswitchPlatformHandler(logger, null, null, null);
+        handler.setHandoff(executor);
+        this.inlineHandler = handler;
+    }
+    
+    public void setPlatformHandler(final PlatformHandler platformHandler) {
+     //   this.platformHandler = platformHandler;
+ //       this.platformHandler.setLogger(logger);
+    }
+    
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, // (3)
+            final SipMessageEvent event)
+            throws Exception {
+        final SipMessage msg = event.getMessage(); // (4)
+       // MetaswitchPlatformHandler test = new MetaswitchPlatformHandler(ctx, event.getConnection(), this.stack);
+        
+        /* A retransmitted INVITE gets our last response replayed (or nothing if we're still routing it) - never a second lookup */
+        if (msg.isInvite() && !LCRServer.getTransactions().begin(msg, event.getConnection())) {
+            return;
+        }
+        /* OPTIONS never queue behind calls - the far end has to see us alive even when we're shedding INVITEs */
+        /* Only INVITEs can wait on the database - and not once everything is preloaded - so the rest are answered right here */
+        if (msg.isOptions() || (inlineRouting && (!msg.isInvite() || LCRServer.isRoutingResident()))) {
+            inlineHandler.handle(msg, event.getConnection(), this.stack);
+            return;
+        }
+        try {
+            executor.execute(new MetaswitchPlatformHandler(logger, msg, event.getConnection(), this.stack));
+        } catch (RejectedExecutionException ex) {
+            if (msg.isInvite()) {
+                rejectInvite(msg, event.getConnection());
+            } else {
+                /* BYE / CANCEL / ACK don't touch the database - cheaper to answer than to let them retransmit */
+                inlineHandler.handle(msg, event.getConnection(), this.stack);
+            }
+        }
+
+    }
+
+    /* Overloaded - send the call elsewhere now rather than let it sit in a queue and get retransmitted */
+    private void rejectInvite(SipMessage msg, Connection connection) {
+        long rejected = rejectedInvites.incrementAndGet();
+        if (rejected == 1 || rejected % 1000 == 0) {
+            logger.warn("Overloaded - " + (dropOnOverload ? "dropping" : "rejecting") + " new INVITEs (" + rejected + " so far)");
+        }
+        if (dropOnOverload) {
+            /* Let a retransmit try again - we may have room by then */
+            LCRServer.getTransactions().abandon(msg);
+            return;
+        }
+        SipResponse response = msg.toRequest().createResponse(503);
+        if (!"0".equals(retryAfter)) {
+            response.addHeader(SipHeader.create("Retry-After", retryAfter));
+        }
+        LCRServer.getTransactions().sent(msg, response);
+        connection.send(response);
+    }
+
+    public long getRejectedInvites() {
+        return rejectedInvites.get();
+    }
+}
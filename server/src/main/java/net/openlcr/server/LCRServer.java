@@ -0,0 +1,1040 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import net.openlcr.common.classes.SystemConfiguration;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.io.File;
+import java.io.IOException;
+
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.DailyRollingFileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import static java.nio.file.Files.readAllBytes;
+import static java.nio.file.Paths.get;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.DIDRoute;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.RouteModification;
+import net.openlcr.common.classes.TrunkGroup;
+import net.openlcr.server.utils.AsyncLogAppender;
+
+
+/**
+ *
+ * @author mgamble
+ */
+public final class LCRServer {
+
+    static Version version = new Version();
+    static Logger logger = Logger.getLogger("net.openlcr.server");
+    public static HikariDataSource ds = new HikariDataSource();
+    static SystemConfiguration config = new SystemConfiguration();
+    static ServerConfiguration serverConfig = new ServerConfiguration();
+    private static TransactionTable transactions = new TransactionTable();
+    static AsyncLogAppender logAppender;
+    private static RoutingJournal journal;
+    private static ApiSubscription apiSubscription;
+    private static volatile DatabaseBreaker dbBreaker;
+    private static volatile HotKeys hotKeys;
+    private static volatile boolean warmingUp;
+    private static final AtomicReference<RouteTable> routeTable = new AtomicReference<>();
+    private static final AtomicReference<Map<Integer, Carrier>> carrierTable = new AtomicReference<>();
+    private static final AtomicReference<SourceDIDIndex> sourceDIDIndex = new AtomicReference<>();
+    /* Background cache refreshes - sized from cacheLoaderThreads once the config is read */
+    static final ThreadPoolExecutor cacheLoaderExecutor = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "openlcr-cache-loader");
+        t.setDaemon(true);
+        return t;
+    });
+    static final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "openlcr-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+      
+    public static SystemConfiguration getConfiguration() {
+        return config;
+    }
+
+    public static TransactionTable getTransactions() {
+        return transactions;
+    }
+
+    /* The routing decision journal, or null if it's turned off */
+    public static RoutingJournal getJournal() {
+        return journal;
+    }
+
+    public static ApiSubscription getApiSubscription() {
+        return apiSubscription;
+    }
+
+    public static DatabaseBreaker getDatabaseBreaker() {
+        return dbBreaker;
+    }
+
+    public static ServerConfiguration getServerConfiguration() {
+        return serverConfig;
+    }
+
+    private static void appendLog(String logMessage) {
+  //      System.out.println(logMessage);
+        logger.info(logMessage);
+    }
+
+    public static void appendDebugLog(String logMessage, Throwable t) {
+   //     System.out.println(logMessage);
+        logger.debug(logMessage, t);
+    }
+
+    /* True until the hot keys from the last run are loaded - OPTIONS gets a 503 until then */
+    public static boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /* Every route data query gets its connection here - through the circuit breaker when it's on */
+    public static Connection getConnection() throws SQLException {
+        DatabaseBreaker breaker = dbBreaker;
+        return breaker == null ? ds.getConnection() : breaker.getConnection(ds);
+    }
+
+    /* For the single-key loads a call can be waiting on - the driver's socketTimeout is sized for the bulk reloads */
+    static void setCallQueryTimeout(PreparedStatement pstmt) throws SQLException {
+        pstmt.setQueryTimeout(Math.max(0, serverConfig.getDbCallQueryTimeoutSeconds()));
+    }
+
+    public static void main(final String[] args) throws Exception {
+        /* Init */
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+
+        System.out.println("");
+        System.out.println("openLCR Core Server Version " + version.getBuildNumber() + " (" + version.getBuildName() + ") - Code By " + version.getAuthor());
+        System.out.println("");
+        OptionParser parser = new OptionParser("c:");
+        parser.accepts("config").withRequiredArg();
+        parser.accepts("compile-snapshot").withRequiredArg();
+        String compileSnapshot = null;
+
+        try {
+            OptionSet options = parser.parse(args);
+            if (!options.has("config")) {
+                System.out.println("No config file provided - cannot startup without config file");
+                System.exit(255);
+            }
+            String configFileName = options.valueOf("config").toString();
+            if (options.has("compile-snapshot")) {
+                compileSnapshot = options.valueOf("compile-snapshot").toString();
+            }
+            File file = new File(configFileName);
+            if ((!file.isFile()) || (!file.canRead())) {
+                System.out.println("Error - cannot read configuration \"" + file + "\" - aborting.");
+                System.exit(1);
+            }
+            try {
+                String jsonInput = new String(readAllBytes(get(configFileName)));
+                config = gson.fromJson(jsonInput, SystemConfiguration.class);
+                serverConfig = gson.fromJson(jsonInput, ServerConfiguration.class);
+
+            } catch (IOException | JsonSyntaxException ex) {
+                System.out.println("Error - cannot parse configuration \"" + file + "\" - error is \"" + ex + "\" - aborting.");
+                System.exit(1);
+            }
+
+        } catch (Exception ex) {
+            System.out.println("Error processing command line arguments: " + ex);
+            System.exit(1);
+        }
+        /* Light up logging */
+        try {
+            Appender fileAppender = new DailyRollingFileAppender(new PatternLayout("%d{ISO8601} [%-5p] %m%n (%t)"), config.getLogDir() + "/" + config.getLogFileName(), "'.'yyyy-MM-dd");
+            if (serverConfig.isAsyncLogging()) {
+                /* Call path threads only drop events in a ring buffer - one writer thread does the disk I/O */
+                logAppender = new AsyncLogAppender(fileAppender, serverConfig.getLogBufferSize());
+                Runtime.getRuntime().addShutdownHook(new Thread(logAppender::close));
+                logger.addAppender(logAppender);
+            } else {
+                logger.addAppender(fileAppender);
+            }
+        } catch (Exception ex) {
+            System.out.println("FATAL - COULD NOT SETUP LOG FILE APPENDER - CHECK CONFIGURATION.");
+            logger.fatal("Could not setup appender?");
+        }
+        logger.setAdditivity(false);
+        logger.setLevel(Level.toLevel(serverConfig.getLogLevel(), Level.INFO));
+
+        logger.info("openLCR Core Server Version " + version.getBuildNumber() + " (" + version.getBuildName() + ") - Code By " + version.getAuthor());
+
+        if (serverConfig.getCacheLoaderThreads() > cacheLoaderExecutor.getMaximumPoolSize()) {
+            cacheLoaderExecutor.setMaximumPoolSize(serverConfig.getCacheLoaderThreads());
+            cacheLoaderExecutor.setCorePoolSize(serverConfig.getCacheLoaderThreads());
+        } else {
+            cacheLoaderExecutor.setCorePoolSize(serverConfig.getCacheLoaderThreads());
+            cacheLoaderExecutor.setMaximumPoolSize(serverConfig.getCacheLoaderThreads());
+        }
+
+        /* Route from the compiled snapshot until the database has been read */
+        boolean fromSnapshot = compileSnapshot == null && !serverConfig.getSnapshotFile().isEmpty() && installSnapshot(new File(serverConfig.getSnapshotFile()));
+
+        /* Light up database */
+        Class.forName("org.mariadb.jdbc.Driver"); 	// load the DB driver
+        HikariConfig hikariConfig = new HikariConfig();	// create a new configuration object
+        /* socketTimeout cuts off any query the database has stopped answering (the single-key loads have a shorter query timeout too, see setCallQueryTimeout) - either way the statement fails, which counts against the breaker, rather than hangs */
+        hikariConfig.setJdbcUrl("jdbc:mariadb://" + config.getMySQLServer() + "/" + config.getMySQLDatabase()+ "?useSSL=false&socketTimeout=" + serverConfig.getDbQueryTimeoutMs());	// set the JDBC url
+        hikariConfig.setUsername(config.getMySQLUser());			// set the username
+        hikariConfig.setPassword(config.getMySQLPass());				// set the password
+        hikariConfig.setLeakDetectionThreshold(60000);
+        hikariConfig.setMaximumPoolSize(50);
+        hikariConfig.setReadOnly(false);
+        hikariConfig.setAutoCommit(true);
+        int connectionTimeout = Math.max(250, serverConfig.getDbConnectionTimeoutMs());
+        hikariConfig.setConnectionTimeout(connectionTimeout);
+        hikariConfig.setValidationTimeout(Math.min(5000, connectionTimeout));
+        if (fromSnapshot) {
+            /* Don't refuse to start while the database is down - the snapshot has what routing needs */
+            hikariConfig.setInitializationFailTimeout(-1);
+        }
+
+           ds = new HikariDataSource(hikariConfig);
+        //  ds.setUsername(config.getDbUser());
+        //  ds.setPassword(config.getDbPass());
+        if (serverConfig.isDbBreakerEnabled() && compileSnapshot == null) {
+            dbBreaker = new DatabaseBreaker(serverConfig, logger);
+        }
+        ChangeSync changeSync = new ChangeSync(logger);
+        if (compileSnapshot != null) {
+            logDatabaseVersion();
+            System.exit(compileSnapshot(new File(compileSnapshot)) ? 0 : 1);
+        }
+        if (fromSnapshot) {
+            /* Load from the database in the background (waiting for it if need be) - we're already routing */
+            maintenanceExecutor.execute(() -> catchUpFromDatabase(changeSync));
+        } else {
+            logDatabaseVersion();
+            if (serverConfig.isCarrierPreloadEnabled()) {
+                reloadCarrierTable();
+            }
+            if (serverConfig.isChangeSyncEnabled()) {
+                changeSync.init();
+            }
+            if (serverConfig.isSourceDIDPreloadEnabled()) {
+                reloadSourceDIDIndex();
+            }
+            if (serverConfig.isRouteTableEnabled()) {
+                reloadRouteTable();
+            }
+            if (serverConfig.isChangeSyncEnabled()) {
+                maintenanceExecutor.scheduleWithFixedDelay(changeSync, serverConfig.getChangeSyncSeconds(), serverConfig.getChangeSyncSeconds(), TimeUnit.SECONDS);
+            }
+        }
+        if (serverConfig.isCarrierPreloadEnabled()) {
+            maintenanceExecutor.scheduleWithFixedDelay(LCRServer::reloadCarrierTable, serverConfig.getCarrierPreloadMinutes(), serverConfig.getCarrierPreloadMinutes(), TimeUnit.MINUTES);
+        }
+        if (serverConfig.isSourceDIDPreloadEnabled()) {
+            maintenanceExecutor.scheduleWithFixedDelay(LCRServer::reloadSourceDIDIndex, serverConfig.getSourceDIDPreloadMinutes(), serverConfig.getSourceDIDPreloadMinutes(), TimeUnit.MINUTES);
+        }
+        if (serverConfig.isRouteTableEnabled()) {
+            maintenanceExecutor.scheduleWithFixedDelay(LCRServer::reloadRouteTable, serverConfig.getRouteTableReloadMinutes(), serverConfig.getRouteTableReloadMinutes(), TimeUnit.MINUTES);
+        }
+	// setup the connection pool
+        logger.info("Listening on " + config.getSipAddress() + " and port " + config.getSipPort());
+        logger.info("Configured for platform: " + config.getSipPlatform());
+        if (serverConfig.isTransactionTableEnabled()) {
+            transactions = new TransactionTable(serverConfig.getTransactionTimeoutSeconds(), serverConfig.getMaxTransactions());
+        }
+        if (serverConfig.isJournalEnabled()) {
+            try {
+                journal = new RoutingJournal(logger, serverConfig.getJournalDirectory(), serverConfig.getJournalSegmentMB(), serverConfig.getJournalMaxSegments());
+                Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+            } catch (IOException ex) {
+                logger.error("Unable to open routing journal in " + serverConfig.getJournalDirectory() + " - continuing without it: " + ex);
+            }
+        }
+        InboundHandler handler = new InboundHandler();
+        handler.setLogger(logger);
+        /*
+        if (config.getSipPlatform().contentEquals(SupportedPlatform.BROADWORKS.toString())) {
+            handler.setPlatformHandler(new BroadsoftPlatformHandler());
+        } else if (config.getSipPlatform().contentEquals(SupportedPlatform.METASWITCH.toString())) {
+            handler.setPlatformHandler(new MetaswitchPlatformHandler());
+        } else if (config.getSipPlatform().contentEquals(SupportedPlatform.M6.toString())) {
+            handler.setPlatformHandler(new M6PlatformHandler());
+        } else {
+            handler.setPlatformHandler(new GenericPlatformHandler());
+        }
+        /* Start our SIP server for metrics and mgmt */
+
+        /* UDP and TCP listeners share the one handler - it needs the stack to send responses on */
+        final CoreSipStack stack = new CoreSipStack(handler, config.getSipAddress(), Integer.parseInt(config.getSipPort()), serverConfig, logger);
+        handler.setStack(stack);
+        if (serverConfig.isManagementEnabled()) {
+            new ManagementServer(serverConfig, handler, logger).start();
+        }
+
+        /* Change events pushed from the API server - ChangeSync still runs as the backstop */
+        if (serverConfig.isApiSubscriptionEnabled()) {
+            apiSubscription = new ApiSubscription(serverConfig, serverConfig.isChangeSyncEnabled() ? changeSync : null, logger);
+            apiSubscription.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(apiSubscription::stop));
+        }
+
+        /* Load what the last run was busy with before telling the softswitch we're up */
+        if (!serverConfig.getHotKeysFile().isEmpty()) {
+            startHotKeys();
+        }
+
+        stack.run();
+    }
+
+    private static void startHotKeys() {
+        HotKeys keys = new HotKeys(new File(serverConfig.getHotKeysFile()), serverConfig.getHotKeysMax(), logger);
+        /* Leave most of the pool (50) for calls arriving meanwhile and for the maintenance thread */
+        int threads = Math.max(1, Math.min(serverConfig.getHotKeysWarmupThreads(), 40));
+        warmingUp = true;
+        Thread warmup = new Thread(() -> {
+            try {
+                keys.warm(threads, serverConfig.getHotKeysWarmupTimeoutSeconds());
+            } finally {
+                warmingUp = false;
+                logger.info("Warm-up finished - answering OPTIONS with 200");
+            }
+            hotKeys = keys;
+            int minutes = Math.max(1, serverConfig.getHotKeysSaveMinutes());
+            maintenanceExecutor.scheduleWithFixedDelay(keys::save, minutes, minutes, TimeUnit.MINUTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(keys::save));
+        }, "openlcr-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+    }
+
+    private static void logDatabaseVersion() throws SQLException {
+        try (Connection connection = getConnection()) {
+            DatabaseMetaData dbmd = connection.getMetaData();
+            logger.info("Connection to " + dbmd.getDatabaseProductName() + " " + dbmd.getDatabaseProductVersion() + " successful.\n");
+        }
+        logger.info("MySQL Connection Online");
+    }
+
+    /**
+     * Install whatever the snapshot has for the tables we preload. Returns
+     * false (and changes nothing) if there's no usable snapshot.
+     */
+    static boolean installSnapshot(File file) {
+        long start = System.currentTimeMillis();
+        try {
+            RouteSnapshot snapshot = RouteSnapshot.read(file);
+            long ageMinutes = TimeUnit.MILLISECONDS.toMinutes(start - snapshot.getCompiledAt());
+            if (ageMinutes > serverConfig.getSnapshotMaxAgeHours() * 60L) {
+                logger.warn("Route snapshot " + file + " is " + ageMinutes + " minutes old - too old to route from, starting from the database");
+                return false;
+            }
+            if (serverConfig.isCarrierPreloadEnabled()) {
+                carrierTable.set(snapshot.getCarriers());
+            }
+            for (Map.Entry<Integer, Carrier> entry : snapshot.getCarriers().entrySet()) {
+                carrierCache.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            if (serverConfig.isSourceDIDPreloadEnabled()) {
+                sourceDIDIndex.set(snapshot.getSourceDIDIndex());
+            }
+            if (serverConfig.isRouteTableEnabled()) {
+                routeTable.set(RouteTable.build(snapshot.getRoutes()));
+            }
+            logger.info("Route snapshot " + file + " loaded - " + snapshot.getRoutes().size() + " routes, " + snapshot.getCarriers().size() + " carriers, "
+                    + snapshot.getSourceDIDIndex().size() + " source DIDs, compiled " + ageMinutes + " minutes ago, in " + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch (IOException ex) {
+            logger.error("Could not use route snapshot " + file + " - starting from the database: " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * Started from a snapshot - once the database answers, bring everything up
+     * to date from it the same way a normal startup would. Runs on the
+     * maintenance thread and retries until the database is reachable.
+     */
+    private static void catchUpFromDatabase(ChangeSync changeSync) {
+        try {
+            logDatabaseVersion();
+        } catch (SQLException ex) {
+            logger.warn("Database not answering - routing from the snapshot, retrying in 30 seconds: " + ex);
+            maintenanceExecutor.schedule(() -> catchUpFromDatabase(changeSync), 30, TimeUnit.SECONDS);
+            return;
+        }
+        if (serverConfig.isCarrierPreloadEnabled()) {
+            reloadCarrierTable();
+        }
+        if (serverConfig.isChangeSyncEnabled()) {
+            changeSync.init();
+        }
+        if (serverConfig.isSourceDIDPreloadEnabled()) {
+            reloadSourceDIDIndex();
+        }
+        if (serverConfig.isRouteTableEnabled()) {
+            reloadRouteTable();
+        }
+        if (serverConfig.isChangeSyncEnabled()) {
+            maintenanceExecutor.scheduleWithFixedDelay(changeSync, serverConfig.getChangeSyncSeconds(), serverConfig.getChangeSyncSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /* --compile-snapshot: load everything from the database and write it out */
+    private static boolean compileSnapshot(File file) {
+        long start = System.currentTimeMillis();
+        reloadCarrierTable();
+        reloadSourceDIDIndex();
+        reloadRouteTable();
+        if (carrierTable.get() == null || sourceDIDIndex.get() == null || routeTable.get() == null) {
+            System.out.println("Error - could not load routing data from the database (see log) - snapshot not written.");
+            return false;
+        }
+        try {
+            RouteSnapshot.write(file, routeTable.get().getRoutes(), carrierTable.get(), sourceDIDIndex.get());
+        } catch (IOException ex) {
+            System.out.println("Error - could not write snapshot \"" + file + "\": " + ex);
+            return false;
+        }
+        String done = "Route snapshot " + file + " written - " + routeTable.get().getRouteCount() + " routes, " + carrierTable.get().size() + " carriers, "
+                + sourceDIDIndex.get().size() + " source DIDs in " + (System.currentTimeMillis() - start) + "ms";
+        System.out.println(done);
+        logger.info(done);
+        return true;
+    }
+
+    /**
+     * True once routes, carriers and source DID overrides are all preloaded, so
+     * routing a call never has to wait on the database.
+     */
+    public static boolean isRoutingResident() {
+        return routeTable.get() != null && carrierTable.get() != null && sourceDIDIndex.get() != null;
+    }
+
+    /* True if contacts for every carrier in the plan can be built without a database query */
+    public static boolean areCarriersResident(Iterable<Route> plan) {
+        Map<Integer, Carrier> table = carrierTable.get();
+        for (Route route : plan) {
+            if ((table == null || !table.containsKey(route.getCarrierID())) && carrierCache.getIfPresent(String.valueOf(route.getCarrierID())) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the price ordered routes for a number. Served from the in-memory route
+     * table once it has loaded, otherwise from routeCache (which queries the DB).
+     * With the cache turned off every call queries the DB directly - use the
+     * admin API (ManagementServer) to pick up a rate deck change instead.
+     */
+    public static RouteSet lookupRoutes(String targetNumber) throws ExecutionException {
+        DatabaseBreaker breaker = dbBreaker;
+        if (breaker != null && breaker.isStale()) {
+            Metrics.STALE_LOOKUPS.increment();
+        }
+        RouteTable table = routeTable.get();
+        if (table != null) {
+            return table.lookup(targetNumber);
+        }
+        if (!config.getCacheEnabled()) {
+            try {
+                return loadRoutes(targetNumber);
+            } catch (SQLException ex) {
+                throw new ExecutionException(ex);
+            }
+        }
+        /* Only numbers answered from the cache are worth warming after a restart */
+        HotKeys keys = hotKeys;
+        if (keys != null) {
+            keys.recordRoute(targetNumber);
+        }
+        return routeCache.get(targetNumber);
+    }
+
+    /**
+     * Re-read every route under a prefix (e.g. after a rate deck change for one
+     * area code) - the route table gets the changed rows swapped in, and cached
+     * per-number answers under the prefix are dropped. Returns how many routes
+     * the prefix now has. Queued on the maintenance thread like every other
+     * route table change.
+     */
+    static Future<Integer> refreshRoutePrefix(String prefix) {
+        return maintenanceExecutor.submit(() -> reloadRoutePrefix(prefix));
+    }
+
+    /* The work behind refreshRoutePrefix - call on the maintenance thread */
+    static int reloadRoutePrefix(String prefix) throws SQLException {
+        ArrayList<Route> routes = new ArrayList<>();
+        try (Connection connection = getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string from routes, carrier where routes.active > 0 and carrier.active > 0 and carrier.id = routes.carrier_id and digits like ?")) {
+            pstmt.setString(1, prefix + "%");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    routes.add(readRoute(rs, rs.getString("digits"), rs.getDouble("price")));
+                }
+            }
+        }
+        RouteTable table = routeTable.get();
+        if (table != null) {
+            Set<Integer> removed = new HashSet<>(table.routeIDsWithPrefix(prefix));
+            for (Route route : routes) {
+                removed.remove(route.getRouteID());
+            }
+            routeTable.set(table.apply(routes, removed));
+        }
+        routeCache.asMap().keySet().removeIf(number -> number.startsWith(prefix));
+        logger.info("Refreshed " + routes.size() + " routes under prefix " + prefix);
+        return routes.size();
+    }
+
+    /**
+     * Pull every active route into a new RouteTable and swap it in. If the load
+     * fails we keep serving from whatever table we already have.
+     */
+    static void reloadRouteTable() {
+        long start = System.currentTimeMillis();
+        try {
+            ArrayList<Route> routes = new ArrayList<>();
+            try (Connection connection = getConnection();
+                    PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string from routes, carrier where routes.active > 0 and carrier.active > 0 and carrier.id = routes.carrier_id")) {
+                pstmt.setFetchSize(1000);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        routes.add(readRoute(rs, rs.getString("digits"), rs.getDouble("price")));
+                    }
+                }
+            }
+            RouteTable table = RouteTable.build(routes);
+            routeTable.set(table);
+            logger.info("Route table loaded - " + table.getRouteCount() + " routes in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception ex) {
+            logger.error("Could not load route table - " + (routeTable.get() == null ? "falling back to per-number queries" : "keeping previous table") + ": " + ex, ex);
+        }
+    }
+
+    /**
+     * Pull every active carrier and its active trunk groups (in priority order) in
+     * one streamed query, and push the lot into carrierCache so no call has to
+     * wait on a carrier load. Carriers that aren't in the table (inactive, or
+     * added since the last pass) still load one at a time through the cache.
+     */
+    static void reloadCarrierTable() {
+        long start = System.currentTimeMillis();
+        try {
+            Map<Integer, Carrier> carriers = new HashMap<>();
+            int trunkGroups = 0;
+            try (Connection connection = getConnection();
+                    PreparedStatement pstmt = connection.prepareStatement("select carrier.id, carrier_name, enable_e164, trunkgroup.id as trunk_table_id, tg_id, ipAddress, port, priority from carrier left join trunkgroup on trunkgroup.carrier_id = carrier.id and trunkgroup.active = 1 where carrier.active > 0 order by carrier.id, priority desc")) {
+                pstmt.setFetchSize(1000);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        int carrierID = rs.getInt("id");
+                        Carrier carrier = carriers.get(carrierID);
+                        if (carrier == null) {
+                            carrier = new Carrier();
+                            carrier.setActive(true);
+                            carrier.setUseE164(rs.getInt("enable_e164") > 0);
+                            carrier.setCarrierName(rs.getString("carrier_name"));
+                            carrier.setCarrierID(carrierID);
+                            carriers.put(carrierID, carrier);
+                        }
+                        if (rs.getString("trunk_table_id") != null) {
+                            carrier.addTrunkGroup(readTrunkGroup(rs, carrierID));
+                            trunkGroups++;
+                        }
+                    }
+                }
+            }
+            carrierTable.set(Collections.unmodifiableMap(carriers));
+            for (Map.Entry<Integer, Carrier> entry : carriers.entrySet()) {
+                carrierCache.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            logger.info("Carrier table loaded - " + carriers.size() + " carriers with " + trunkGroups + " trunk groups in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception ex) {
+            logger.error("Could not bulk load carriers - " + (carrierTable.get() == null ? "carriers will load on demand" : "keeping previous table") + ": " + ex, ex);
+        }
+    }
+
+    /**
+     * Source DID overrides for a billing (national) number, in priority order.
+     * Served from the preloaded index when we have one - most numbers have no
+     * override and that answer doesn't touch the cache at all.
+     */
+    public static RouteSet getSourceDIDOverrides(long billingNumber) throws ExecutionException {
+        SourceDIDIndex index = sourceDIDIndex.get();
+        if (index != null) {
+            return index.getOverrides(billingNumber);
+        }
+        HotKeys keys = hotKeys;
+        if (keys != null) {
+            keys.recordSourceDID(billingNumber);
+        }
+        return sourceDIDRouteCache.get(String.valueOf(billingNumber));
+    }
+
+    /* Carriers that must not be offered for calls from this billing (national) number */
+    public static ImmutableSet<Integer> getSourceDIDBlacklist(long billingNumber) throws ExecutionException {
+        SourceDIDIndex index = sourceDIDIndex.get();
+        if (index != null) {
+            return index.getBlacklist(billingNumber);
+        }
+        return sourceDIDCarrierBlacklist.get(String.valueOf(billingNumber));
+    }
+
+    /**
+     * Load every active source DID override and every blacklist entry into a new
+     * SourceDIDIndex and swap it in.
+     */
+    static void reloadSourceDIDIndex() {
+        long start = System.currentTimeMillis();
+        try {
+            SourceDIDIndex.Builder builder = new SourceDIDIndex.Builder();
+            int skipped = 0;
+            try (Connection connection = getConnection()) {
+                try (PreparedStatement pstmt = connection.prepareStatement("select source_did_routes.id, billing_number, carrier_id, route_modification, modification_string from source_did_routes, carrier where source_did_routes.active > 0 and carrier.active > 0 and carrier.id = source_did_routes.carrier_id order by billing_number, priority desc")) {
+                    pstmt.setFetchSize(1000);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            long billingNumber = SourceDIDIndex.parseBillingNumber(rs.getString("billing_number"));
+                            if (billingNumber < 0) {
+                                skipped++;
+                                continue;
+                            }
+                            builder.addOverride(billingNumber, readRoute(rs, rs.getString("billing_number"), 0.00));
+                        }
+                    }
+                }
+                try (PreparedStatement pstmt = connection.prepareStatement("select billing_number, carrier_id from blacklist_routes")) {
+                    pstmt.setFetchSize(1000);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            long billingNumber = SourceDIDIndex.parseBillingNumber(rs.getString("billing_number"));
+                            if (billingNumber < 0) {
+                                skipped++;
+                                continue;
+                            }
+                            builder.addBlacklist(billingNumber, rs.getInt("carrier_id"));
+                        }
+                    }
+                }
+            }
+            SourceDIDIndex index = builder.build();
+            sourceDIDIndex.set(index);
+            logger.info("Source DID index loaded - " + index.size() + " billing numbers in " + (System.currentTimeMillis() - start) + "ms" + (skipped > 0 ? " (" + skipped + " rows with non-numeric billing numbers skipped)" : ""));
+        } catch (Exception ex) {
+            logger.error("Could not load source DID index - " + (sourceDIDIndex.get() == null ? "falling back to per-number queries" : "keeping previous index") + ": " + ex, ex);
+        }
+    }
+
+    /**
+     * Apply changed route rows from the change sync - call on the maintenance
+     * thread. With no route table loaded we're on the per-number query path,
+     * so only the cached answers a change can affect are dropped: numbers
+     * under a changed route's digits, and answers holding a changed or
+     * removed route (which covers a route whose digits moved).
+     */
+    static void applyRouteChanges(Collection<Route> upserts, Collection<Integer> removedRouteIDs) {
+        if (upserts.isEmpty() && removedRouteIDs.isEmpty()) {
+            return;
+        }
+        RouteTable table = routeTable.get();
+        if (table != null) {
+            routeTable.set(table.apply(upserts, removedRouteIDs));
+            return;
+        }
+        Set<Integer> changedRouteIDs = new HashSet<>(removedRouteIDs);
+        List<String> changedDigits = new ArrayList<>(upserts.size());
+        for (Route route : upserts) {
+            changedRouteIDs.add(route.getRouteID());
+            if (route.getDigits() != null) {
+                changedDigits.add(route.getDigits());
+            }
+        }
+        routeCache.asMap().entrySet().removeIf(entry -> {
+            for (String digits : changedDigits) {
+                if (entry.getKey().startsWith(digits)) {
+                    return true;
+                }
+            }
+            for (Integer routeID : changedRouteIDs) {
+                if (entry.getValue().containsRoute(routeID)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /* Reload a changed carrier (and its trunk groups) in the background of the cache - callers keep the old entry until the new one is in */
+    static void applyCarrierChange(int carrierID) {
+        applyCarrierChanges(Collections.singleton(carrierID));
+    }
+
+    /**
+     * With the carrier table loaded, changed carriers are re-read here and the
+     * table updated, so it keeps holding every active carrier - resident
+     * routing relies on that. Without it (or if the read fails) the cached
+     * entry is refreshed in the background as before.
+     */
+    static void applyCarrierChanges(Collection<Integer> carrierIDs) {
+        Set<String> billingNumbers = new HashSet<>();
+        SourceDIDIndex index = sourceDIDIndex.get();
+        Map<Integer, Carrier> table = carrierTable.get();
+        Map<Integer, Carrier> updated = table == null ? null : new HashMap<>(table);
+        for (Integer carrierID : carrierIDs) {
+            String key = String.valueOf(carrierID);
+            Carrier carrier = null;
+            if (updated != null) {
+                try {
+                    carrier = loadCarrier(key);
+                } catch (Exception ex) {
+                    logger.warn("Could not reload carrier " + carrierID + " - keeping the carrier table entry: " + ex);
+                }
+            }
+            if (carrier != null) {
+                if (carrier.isActive()) {
+                    updated.put(carrierID, carrier);
+                } else {
+                    updated.remove(carrierID);
+                }
+                if (carrierCache.getIfPresent(key) != null) {
+                    carrierCache.put(key, carrier);
+                }
+            } else if (carrierCache.getIfPresent(key) != null) {
+                carrierCache.refresh(key);
+            }
+            /* Source DID overrides only include active carriers, so any override pointing at this carrier may have changed too */
+            if (index != null) {
+                for (Long billingNumber : index.billingNumbersUsingCarrier(carrierID)) {
+                    billingNumbers.add(String.valueOf(billingNumber));
+                }
+            }
+            for (Map.Entry<String, RouteSet> entry : sourceDIDRouteCache.asMap().entrySet()) {
+                if (entry.getValue().containsCarrier(carrierID)) {
+                    sourceDIDRouteCache.refresh(entry.getKey());
+                }
+            }
+        }
+        if (updated != null) {
+            carrierTable.set(Collections.unmodifiableMap(updated));
+        }
+        applySourceDIDRouteChanges(billingNumbers);
+    }
+
+    static void applySourceDIDRouteChange(String billingNumber) {
+        applySourceDIDRouteChanges(Collections.singleton(billingNumber));
+    }
+
+    /* Reload the overrides for every billing number given, then swap in one new index for the lot - call on the maintenance thread */
+    static void applySourceDIDRouteChanges(Collection<String> billingNumbers) {
+        Map<Long, RouteSet> changed = new HashMap<>();
+        SourceDIDIndex index = sourceDIDIndex.get();
+        for (String billingNumber : billingNumbers) {
+            long key = SourceDIDIndex.parseBillingNumber(billingNumber);
+            if (index != null && key >= 0) {
+                try {
+                    changed.put(key, loadSourceDIDRoutes(billingNumber));
+                } catch (SQLException ex) {
+                    logger.warn("Could not reload source DID overrides for " + billingNumber + ": " + ex);
+                }
+            }
+            if (sourceDIDRouteCache.getIfPresent(billingNumber) != null) {
+                sourceDIDRouteCache.refresh(billingNumber);
+            }
+        }
+        if (!changed.isEmpty()) {
+            sourceDIDIndex.set(index.with(changed, Collections.emptyMap()));
+        }
+    }
+
+    static void applyBlacklistChange(String billingNumber) {
+        applyBlacklistChanges(Collections.singleton(billingNumber));
+    }
+
+    /* Same as applySourceDIDRouteChanges, for carrier blacklists */
+    static void applyBlacklistChanges(Collection<String> billingNumbers) {
+        Map<Long, ImmutableSet<Integer>> changed = new HashMap<>();
+        SourceDIDIndex index = sourceDIDIndex.get();
+        for (String billingNumber : billingNumbers) {
+            long key = SourceDIDIndex.parseBillingNumber(billingNumber);
+            if (index != null && key >= 0) {
+                try {
+                    changed.put(key, loadBlacklist(billingNumber));
+                } catch (SQLException ex) {
+                    logger.warn("Could not reload carrier blacklist for " + billingNumber + ": " + ex);
+                }
+            }
+            if (sourceDIDCarrierBlacklist.getIfPresent(billingNumber) != null) {
+                sourceDIDCarrierBlacklist.refresh(billingNumber);
+            }
+        }
+        if (!changed.isEmpty()) {
+            sourceDIDIndex.set(index.with(Collections.emptyMap(), changed));
+        }
+    }
+
+    static TrunkGroup readTrunkGroup(ResultSet rs, int carrierID) throws SQLException {
+        TrunkGroup trunkGroup = new TrunkGroup();
+        trunkGroup.setCarrerID(carrierID);
+        trunkGroup.setIpAddress(rs.getString("ipAddress"));
+        trunkGroup.setTrunkGroupID(rs.getString("tg_id"));
+        trunkGroup.setPort(rs.getInt("port"));
+        trunkGroup.setPriority(rs.getInt("priority"));
+        return trunkGroup;
+    }
+
+    /* Build a Route from a routes / source_did_routes row - it's active since we only select active ones from the DB */
+    static Route readRoute(ResultSet rs, String digits, double price) throws SQLException {
+        Route route = new Route();
+        route.setActive(true);
+        route.setCarrierID(rs.getInt("carrier_id"));
+        route.setDigits(digits);
+        route.setPrice(price);
+        route.setRouteID(rs.getInt("id"));
+        /* Patch Jan 30th to add digit modifications */
+        if (rs.getString("route_modification") != null) {
+            route.setRouteModification(RouteModification.valueOf(rs.getString("route_modification").toUpperCase()));
+        }
+        if (rs.getString("modification_string") != null) {
+            route.setModificationString(rs.getString("modification_string"));
+        }
+        return route;
+    }
+
+    /* ToDo - put timeouts into config file */
+    /* Carriers are refreshed ahead of time on the loader pool - callers keep getting the current entry while the new one loads, and a failed refresh keeps the last good one */
+    /* Contact templates are built from these entries, so the ones offering a carrier go when its entry is replaced by a different one or dropped */
+    public static LoadingCache<String, Carrier> carrierCache = CacheBuilder.newBuilder().recordStats().maximumSize(20000).refreshAfterWrite(60, TimeUnit.MINUTES).removalListener((RemovalNotification<String, Carrier> notification) -> ContactTemplate.carrierRemoved(notification.getKey(), notification.getValue())).build(
+            new CacheLoader<String, Carrier>() {
+        @Override
+        public Carrier load(String key) throws Exception {
+            Map<Integer, Carrier> table = carrierTable.get();
+            Carrier carrier = table == null ? null : table.get(Integer.valueOf(key));
+            return carrier != null ? carrier : loadCarrier(key);
+        }
+
+        @Override
+        public ListenableFuture<Carrier> reload(String key, Carrier oldValue) {
+            return reloadKeepingLast("carrier", key, oldValue, () -> loadCarrier(key));
+        }
+    });
+
+    /**
+     * Refresh a cache entry on the loader pool. Until the new value is in,
+     * callers keep getting the old one - and if the load fails (database down,
+     * circuit breaker open) the old one stays, so an outage costs freshness
+     * rather than answers.
+     */
+    static <V> ListenableFuture<V> reloadKeepingLast(String what, String key, V oldValue, Callable<V> loader) {
+        ListenableFutureTask<V> task = ListenableFutureTask.create(() -> {
+            try {
+                return loader.call();
+            } catch (Exception ex) {
+                logger.warn("Could not refresh " + what + " " + key + " - keeping previous entry: " + ex);
+                return oldValue;
+            }
+        });
+        cacheLoaderExecutor.execute(task);
+        return task;
+    }
+
+    static Carrier loadCarrier(String key) throws Exception {
+        Carrier carrier = new Carrier();
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement pstmt = connection.prepareStatement("select id, carrier_name, active, enable_e164 from carrier where id = ? ")) {
+                setCallQueryTimeout(pstmt);
+                pstmt.setString(1, key);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new Exception("Carrier ID " + key + "not found");
+                    }
+                    if (rs.getInt("active") > 0) {
+                        carrier.setActive(true);
+                    } else {
+                        carrier.setActive(false);
+                    }
+                    if (rs.getInt("enable_e164") > 0) {
+                        carrier.setUseE164(true);
+                    } else {
+                        carrier.setUseE164(false);
+                    }
+                    carrier.setCarrierName(rs.getString("carrier_name"));
+                    carrier.setCarrierID(Integer.parseInt(key));
+                }
+            }
+
+            /* Now load the trunk groups */
+            try (PreparedStatement pstmt = connection.prepareStatement("select trunkgroup.id as trunk_table_id, tg_id, ipAddress, port, priority, carrier.id, carrier_name from carrier, trunkgroup where carrier.id = ? and carrier.id = trunkgroup.carrier_id and trunkgroup.active = 1 order by priority desc")) {
+                setCallQueryTimeout(pstmt);
+                pstmt.setString(1, key);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Found trunkgroup record ID" + rs.getString("trunk_table_id") + " for carrier " + key);
+                        }
+                        carrier.addTrunkGroup(readTrunkGroup(rs, Integer.parseInt(key)));
+                    }
+                }
+            }
+        }
+        return carrier;
+    }
+
+    public static LoadingCache<String, RouteSet> routeCache = CacheBuilder.newBuilder().recordStats().maximumSize(20000).refreshAfterWrite(15, TimeUnit.MINUTES).build(
+            new CacheLoader<String, RouteSet>() {
+
+        public RouteSet load(String targetNumber) throws Exception {
+            return loadRoutes(targetNumber);
+        }
+
+        @Override
+        public ListenableFuture<RouteSet> reload(String targetNumber, RouteSet oldValue) {
+            return reloadKeepingLast("routes for", targetNumber, oldValue, () -> loadRoutes(targetNumber));
+        }
+    });
+
+    static RouteSet loadRoutes(String targetNumber) throws SQLException {
+        DIDRoute routes = new DIDRoute();
+        try (Connection connection = getConnection();
+                //                    PreparedStatement pstmt = connection.prepareStatement("select id, digits, price, carrier_id from routes where active > 0 and LEFT('" + calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber() + "' ,LENGTH(digits)) = digits ORDER BY LENGTH(digits) DESC");
+                //       PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string from routes, carrier where routes.active > 0 and carrier.active > 0 and carrier.id = routes.carrier_id and LEFT('" + targetNumber + "' ,LENGTH(digits)) = digits ORDER BY LENGTH(digits) DESC")) {
+                PreparedStatement pstmt = connection.prepareStatement("select routes.id, digits, price, carrier_id, route_modification, modification_string from routes, carrier where routes.active > 0 and carrier.active > 0 and carrier.id = routes.carrier_id and LEFT('" + targetNumber + "' ,LENGTH(digits)) = digits AND digits LIKE CONCAT(LEFT('" + targetNumber + "',2),'%') ")) {
+            setCallQueryTimeout(pstmt);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                //     LCRServer.appendLog("LCR Query: " + pstmt.toString());
+                while (rs.next()) {
+                    /* We know the route is active at this point, since we only select active ones from the DB */
+                    routes.addTargetRoute(readRoute(rs, rs.getString("digits"), rs.getDouble("price")));
+                }
+            }
+        }
+        routes.orderTargetRoutes();
+
+        return RouteSet.of(routes);
+    }
+
+    public static LoadingCache<String, RouteSet> sourceDIDRouteCache = CacheBuilder.newBuilder().recordStats().maximumSize(20000).refreshAfterWrite(15, TimeUnit.MINUTES).build(
+            new CacheLoader<String, RouteSet>() {
+
+        @Override
+        public RouteSet load(String billingNumber) throws Exception {
+            try {
+                return loadSourceDIDRoutes(billingNumber);
+            } catch (SQLException ex) {
+                logger.debug("Could not query LCR server for source did override: " + ex, ex);
+                return RouteSet.EMPTY;
+            }
+        }
+
+        @Override
+        public ListenableFuture<RouteSet> reload(String billingNumber, RouteSet oldValue) {
+            return reloadKeepingLast("source DID overrides for", billingNumber, oldValue, () -> loadSourceDIDRoutes(billingNumber));
+        }
+    });
+
+    static RouteSet loadSourceDIDRoutes(String billingNumber) throws SQLException {
+        DIDRoute routes = new DIDRoute();
+        try (Connection connection = getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select source_did_routes.id, billing_number, carrier_id, route_modification, modification_string from source_did_routes, carrier where source_did_routes.active > 0 and carrier.active > 0 and carrier.id = source_did_routes.carrier_id and billing_number = ? order by priority desc")) {
+            setCallQueryTimeout(pstmt);
+            pstmt.setString(1, billingNumber);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    routes.addTargetRoute(readRoute(rs, billingNumber, 0.00));
+                }
+            }
+        }
+        return RouteSet.of(routes);
+    }
+    
+    public static LoadingCache<String, ImmutableSet<Integer>> sourceDIDCarrierBlacklist = CacheBuilder.newBuilder().recordStats().maximumSize(20000).refreshAfterWrite(60, TimeUnit.MINUTES).build(
+            new CacheLoader<String, ImmutableSet<Integer>>() {
+
+        @Override
+        public ImmutableSet<Integer> load(String billingNumber) throws Exception {
+            try {
+                return loadBlacklist(billingNumber);
+            } catch (SQLException ex) {
+                logger.debug("Could not query LCR server for blacklist did carriers: " + ex, ex);
+                return ImmutableSet.of();
+            }
+        }
+
+        @Override
+        public ListenableFuture<ImmutableSet<Integer>> reload(String billingNumber, ImmutableSet<Integer> oldValue) {
+            return reloadKeepingLast("carrier blacklist for", billingNumber, oldValue, () -> loadBlacklist(billingNumber));
+        }
+    });
+
+    static ImmutableSet<Integer> loadBlacklist(String billingNumber) throws SQLException {
+        ImmutableSet.Builder<Integer> blacklistCarriers = ImmutableSet.builder();
+        try (Connection connection = getConnection();
+                PreparedStatement pstmt = connection.prepareStatement("select carrier_id from blacklist_routes where billing_number = ?")) {
+            setCallQueryTimeout(pstmt);
+            pstmt.setString(1, billingNumber);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    blacklistCarriers.add(rs.getInt("carrier_id"));
+                }
+            }
+        }
+        return blacklistCarriers.build();
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Small embedded Jetty server for metrics and management, kept off the SIP
+ * port. Serves:
+ *
+ *   GET /metrics - Prometheus text format (see Metrics)
+ *
+ *   POST /admin/routes?prefix=1416       - re-read every route under a prefix
+ *   POST /admin/carriers?id=12           - reload a carrier and its trunk groups
+ *   POST /admin/overrides?billingNumber= - reload one number's source DID overrides
+ *   POST /admin/blacklist?billingNumber= - reload one number's carrier blacklist
+ *
+ * The admin calls replace turning cacheEnabled off to pick up a rate deck
+ * change - they refresh just what changed, the same way the change sync does.
+ * They answer 200 once the refresh is done, or 202 with "status": "queued" if
+ * the maintenance thread is still busy with something else - the refresh
+ * runs when it gets there.
+ *
+ * Binds to managementAddress (loopback by default) - there's no
+ * authentication, so don't expose it beyond the monitoring network.
+ *
+ * @author mgamble
+ */
+public final class ManagementServer {
+
+    private final Server server;
+    private final Logger logger;
+    private final String address;
+    private final int port;
+
+    public ManagementServer(ServerConfiguration serverConfig, InboundHandler handler, Logger logger) {
+        this.logger = logger;
+        this.address = serverConfig.getManagementAddress();
+        this.port = serverConfig.getManagementPort();
+        this.server = new Server(new InetSocketAddress(address, port));
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new MetricsServlet(handler)), "/metrics");
+        context.addServlet(new ServletHolder(new AdminServlet(logger)), "/admin/*");
+        server.setHandler(context);
+        server.setStopAtShutdown(true);
+    }
+
+    public void start() {
+        try {
+            server.start();
+            logger.info("Management server listening on " + address + ":" + port);
+        } catch (Exception ex) {
+            /* Metrics are nice to have - never worth refusing to route calls over */
+            logger.error("Unable to start management server on " + address + ":" + port + " - continuing without it: " + ex, ex);
+        }
+    }
+
+    private static final class MetricsServlet extends HttpServlet {
+
+        private final InboundHandler handler;
+
+        MetricsServlet(InboundHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write(Metrics.render(handler));
+        }
+    }
+
+    private static final class AdminServlet extends HttpServlet {
+
+        private final Logger logger;
+
+        AdminServlet(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String action = request.getPathInfo() == null ? "" : request.getPathInfo();
+            try {
+                switch (action) {
+                    case "/routes": {
+                        String prefix = digits(request, "prefix");
+                        if (prefix == null) {
+                            reply(response, HttpServletResponse.SC_BAD_REQUEST, "{\"error\": \"prefix must be digits\"}");
+                            return;
+                        }
+                        Future<Integer> routes = LCRServer.refreshRoutePrefix(prefix);
+                        if (!finished(routes, 60)) {
+                            reply(response, HttpServletResponse.SC_ACCEPTED, "{\"prefix\": \"" + prefix + "\", \"status\": \"queued\"}");
+                            return;
+                        }
+                        reply(response, HttpServletResponse.SC_OK, "{\"prefix\": \"" + prefix + "\", \"routes\": " + routes.get() + "}");
+                        return;
+                    }
+                    case "/carriers": {
+                        String carrierID = digits(request, "id");
+                        if (carrierID == null) {
+                            reply(response, HttpServletResponse.SC_BAD_REQUEST, "{\"error\": \"id must be digits\"}");
+                            return;
+                        }
+                        boolean done = onMaintenanceThread(() -> LCRServer.applyCarrierChange(Integer.parseInt(carrierID)));
+                        logger.info("Admin refresh of carrier " + carrierID + (done ? "" : " queued"));
+                        reply(response, done ? HttpServletResponse.SC_OK : HttpServletResponse.SC_ACCEPTED,
+                                "{\"carrier\": " + carrierID + (done ? "" : ", \"status\": \"queued\"") + "}");
+                        return;
+                    }
+                    case "/overrides":
+                    case "/blacklist": {
+                        String billingNumber = digits(request, "billingNumber");
+                        if (billingNumber == null) {
+                            reply(response, HttpServletResponse.SC_BAD_REQUEST, "{\"error\": \"billingNumber must be digits\"}");
+                            return;
+                        }
+                        boolean done;
+                        if (action.equals("/overrides")) {
+                            done = onMaintenanceThread(() -> LCRServer.applySourceDIDRouteChange(billingNumber));
+                        } else {
+                            done = onMaintenanceThread(() -> LCRServer.applyBlacklistChange(billingNumber));
+                        }
+                        logger.info("Admin refresh of " + action.substring(1) + " for " + billingNumber + (done ? "" : " queued"));
+                        reply(response, done ? HttpServletResponse.SC_OK : HttpServletResponse.SC_ACCEPTED,
+                                "{\"billingNumber\": \"" + billingNumber + "\"" + (done ? "" : ", \"status\": \"queued\"") + "}");
+                        return;
+                    }
+                    default:
+                        reply(response, HttpServletResponse.SC_NOT_FOUND, "{\"error\": \"unknown admin action\"}");
+                }
+            } catch (Exception ex) {
+                logger.error("Admin " + action + " failed: " + ex, ex);
+                reply(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "{\"error\": \"" + String.valueOf(ex.getMessage()).replace("\"", "'") + "\"}");
+            }
+        }
+
+        /* Everything else that changes the caches runs on the maintenance thread - so does this, so it can't race the change sync */
+        private static boolean onMaintenanceThread(Runnable task) throws Exception {
+            return finished(LCRServer.maintenanceExecutor.submit(task), 30);
+        }
+
+        /*
+         * Wait for a maintenance task - false if it's still queued behind
+         * something long (a full route table reload, say). It still runs, so
+         * the caller answers 202 rather than an error.
+         */
+        private static boolean finished(Future<?> task, int seconds) throws Exception {
+            try {
+                task.get(seconds, TimeUnit.SECONDS);
+                return true;
+            } catch (TimeoutException ex) {
+                return false;
+            }
+        }
+
+        private static String digits(HttpServletRequest request, String name) {
+            String value = request.getParameter(name);
+            if (value == null || value.isEmpty() || value.length() > 20 || !value.chars().allMatch(Character::isDigit)) {
+                return null;
+            }
+            return value;
+        }
+
+        private static void reply(HttpServletResponse response, int status, String json) throws IOException {
+            response.setStatus(status);
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write(json);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.SipResponse;
+import io.pkts.packet.sip.address.SipURI;
+import io.pkts.packet.sip.header.ContactHeader;
+import io.pkts.packet.sip.header.FromHeader;
+import io.pkts.packet.sip.header.SipHeader;
+import io.sipstack.netty.codec.sip.Connection;
+import java.util.concurrent.Executor;
+import net.openlcr.server.utils.NumberNormalizer;
+import net.openlcr.server.utils.SipUri;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * @author mgamble
+ */
+@Sharable // (1)
+public final class MetaswitchPlatformHandler extends GenericPlatformHandler {
+  //  Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    
+    /* Set on the shared inline instance only - an INVITE it can't route from memory goes here instead */
+    private Executor handoff;
+    /* Set on an INVITE handed off from the event loop, which has already had its 100 Trying */
+    private boolean tryingSent;
+
+    public MetaswitchPlatformHandler(Logger logger, SipMessage msg, Connection connection, CoreSipStack stack) {
+        super(logger, msg, connection, stack);
+    }
+
+    /* Mark this as the instance answering on the event loop - it must never wait on the database */
+    void setHandoff(Executor handoff) {
+        this.handoff = handoff;
+    }
+    
+    @Override
+    public void handleOptions(SipMessage msg, Connection connection, CoreSipStack stack) {
+        SipResponse response = this.optionsResponse(msg);
+        if (response.getStatus() == 200) {
+            this.appendLog("Got OPTIONS request from {} - responding 200.... all quiet on the western front.....", msg.getViaHeader().getHost());
+        }
+        connection.send(response);
+    }
+    
+    /* Case-insensitive ";dtg=" search without lowercasing a copy of the URI on every INVITE */
+    private static boolean hasDtgParameter(String uri) {
+        for (int i = uri.indexOf(';'); i >= 0; i = uri.indexOf(';', i + 1)) {
+            if (uri.regionMatches(true, i + 1, "dtg=", 0, 4)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void handleInvite(SipMessage msg, Connection connection, CoreSipStack stack) {
+        this.routeInvite(msg, connection, stack);
+    }
+
+    @Override
+    protected boolean routeInvite(SipMessage msg, Connection connection, CoreSipStack stack) {
+        if (LCRServer.config.isSend100Trying() && !tryingSent) {
+            this.appendLog("Sending 100 Trying for inital invite");
+            SipResponse tryingResponse = msg.toRequest().createResponse(100);
+            this.sendResponse(msg, connection, tryingResponse);
+        }
+        final SipURI requestURI = (SipURI) msg.toRequest().getRequestUri();
+        
+        FromHeader fromHeader = msg.getFromHeader();
+        /* What we decided, for the routing journal */
+        String lookupNumber = null;
+        long chargeNumber = -1;
+        RoutePlan routePlan = null;
+        // Check if calling number has special routing
+        long stageStart = System.nanoTime();
+        try {
+            // Patch March 20, 2018 - Found issue with a deployment with CIC codes - the requestURI.getUser contains ; and additional values
+            // Error finding route for phone number: +14169671111;cic=0001;dai=presub: Error type: NOT_A_NUMBER. The string supplied did not seem to be a phone number.
+            // The real patch should be in the getUser of the requestURI, but I'm giong to fix it here so we can action on the CIC code if we need to
+            String requestUser = requestURI.getUser().toString();
+            int parameters = requestUser.indexOf(';');
+            if (parameters >= 0) {
+                requestUser = requestUser.substring(0, parameters);
+                // If we wanted the CIC code we could get it here, but we don't need it (yet)
+            }
+            PhoneNumber calledNumber = NumberNormalizer.parse(requestUser, "CA");
+            
+            lookupNumber = calledNumber.getCountryCode() + "" + calledNumber.getNationalNumber();
+            if (NumberNormalizer.isValidNumber(calledNumber)) {
+                this.appendLog("Starting routing lookup for: {}", lookupNumber);
+            }
+            stageStart = Metrics.PARSE.recordSince(stageStart);
+            RouteSet targetRoutes = LCRServer.lookupRoutes(lookupNumber);
+            stageStart = Metrics.ROUTE_LOOKUP.recordSince(stageStart);
+            this.appendLog("Found {} routes", targetRoutes.size());
+            
+            /* Now see if we have to preprend any routes based on the billing header.  The cached sets are shared, so overrides and blacklists are applied through a per-call RoutePlan rather than by editing them */
+            routePlan = new RoutePlan(targetRoutes);
+            try {
+              //  SipHeader pChargeInfo = msg.getHeader("P-Charge-Info");
+                SipUri.SipContactInfo contactInfo = SipUri.parseSipContact(msg.getHeader("P-Charge-Info").getValue().toString().replace(";npi=ISDN", ""));
+            //    String chargeURI =  pChargeInfo.getValue().toString();
+                this.appendLog("Charge Number for call is: {}", contactInfo.userPart);
+                PhoneNumber sourceNumber = NumberNormalizer.parse(contactInfo.userPart, "CA");
+                chargeNumber = sourceNumber.getNationalNumber();
+                
+                // Overrides come back in priority order and go in front of the normal routes in that order
+                RouteSet overrideRoutes = LCRServer.getSourceDIDOverrides(sourceNumber.getNationalNumber());
+                if (!overrideRoutes.isEmpty()) {
+                    this.appendLog("Override found - prepending {} routes", overrideRoutes.size());
+                }
+                stageStart = Metrics.SOURCE_DID_OVERRIDES.recordSince(stageStart);
+                // Now we query for blacklist entries
+               
+                ImmutableSet<Integer> blacklistCarriers = LCRServer.getSourceDIDBlacklist(sourceNumber.getNationalNumber());
+                for (Integer carrierID : blacklistCarriers) {
+                    this.appendLog("Blacklist found for carrierID {} - removing route", carrierID);
+                }
+                routePlan = new RoutePlan(overrideRoutes, targetRoutes, blacklistCarriers);
+                stageStart = Metrics.BLACKLIST.recordSince(stageStart);
+            } catch (Exception ex) {
+                /* Mostly no P-Charge-Info at all - counted against the override stage */
+                stageStart = Metrics.SOURCE_DID_OVERRIDES.recordSince(stageStart);
+          //      this.appendLog("No overrides found for charge number - continuing");
+             //   this.appendLog("Could not get charging info for call: " + ex, ex);
+            }
+            
+            if (routePlan.isEmpty()) {
+                this.appendLog("No routes found for for: {}(Lookup was {})", calledNumber, lookupNumber);
+                /* We have no routes - bail! */
+                /* We will return a 503 for now */
+                SipResponse response = msg.toRequest().createResponse(503);
+                this.sendResponse(msg, connection, response);
+                this.journal(msg, lookupNumber, chargeNumber, 503, routePlan, null);
+            } else {
+                if (handoff != null && !LCRServer.areCarriersResident(routePlan)) {
+                    /* A carrier that isn't loaded (reactivated since the last carrier load, say) would be read from the database - not on the event loop */
+                    MetaswitchPlatformHandler handler = new MetaswitchPlatformHandler(this.getLogger(), msg, connection, stack);
+                    handler.tryingSent = LCRServer.config.isSend100Trying();
+                    handoff.execute(handler);
+                    return false;
+                }
+                SipResponse response = msg.toRequest().createResponse(Integer.parseInt(LCRServer.getConfiguration().getSipResponseCode()));
+                
+                /* Trunks and q values only depend on which carriers the plan offers, so they come from a cached template */
+                ContactTemplate template = ContactTemplate.forPlan(routePlan, 0.6);
+                stageStart = Metrics.CARRIERS.recordSince(stageStart);
+                if (template.isTruncated()) {
+                    this.appendLog("Q Value is less than 0.6 - skipping further routes");
+                }
+                String requestURIString = requestURI.toString();
+                if (!template.isEmpty() && !hasDtgParameter(requestURIString)) {
+                    response.addHeader(SipHeader.create("Contact", template.renderMetaswitchContact(requestURIString)));
+                } else {
+                    /* Request already carries a dtg - let the builder replace it rather than splice a second one on */
+                    ContactHeader.Builder contactHeaderBuilder = ContactHeader.with();
+                    for (ContactTemplate.Entry entry : template.getEntries()) {
+                        final SipURI contactURI = requestURI.clone();
+                        contactURI.setParameter("dtg", entry.getTrunk().getTrunkGroupID());
+                        contactHeaderBuilder.address(contactURI).headerParam("q", entry.getQ());
+                    }
+                    response.addHeader(contactHeaderBuilder.build());
+                }
+                Metrics.RESPONSE_BUILD.recordSince(stageStart);
+                this.sendResponse(msg, connection, response);
+                this.journal(msg, lookupNumber, chargeNumber, response.getStatus(), routePlan, template.getEntries());
+                this.appendLog("Finished routing lookup for: {}", lookupNumber);
+            }
+
+            /* For now, we're going to return whatever error code is set in the config file when we can't parse the number */
+        } catch (Exception ex) {
+            this.appendLog("Error finding route for phone number: " + requestURI.getUser().toString() + ": " + ex, ex);
+            
+            SipResponse response = msg.toRequest().createResponse(503);
+            this.sendResponse(msg, connection, response);
+            this.journal(msg, lookupNumber, chargeNumber, 503, routePlan, null);
+        }
+        return true;
+    }
+
+    private void journal(SipMessage msg, String lookupNumber, long chargeNumber, int resultCode, RoutePlan routePlan, ContactTemplate.Entry[] offered) {
+        RoutingJournal journal = LCRServer.getJournal();
+        if (journal != null) {
+            journal.record(msg.getCallIDHeader().getCallId().toString(), lookupNumber, chargeNumber, resultCode, routePlan,
+                    routePlan == null ? 0 : routePlan.getOverrideCount(), offered);
+        }
+    }
+    
+    @Override
+    public void handleCancel(SipMessage msg, Connection connection, CoreSipStack stack) {
+        this.appendLog("Sending 200 OK for CANCEL request");
+        SipResponse response = msg.toRequest().createResponse(200);
+        connection.send(response);
+    }
+    
+}
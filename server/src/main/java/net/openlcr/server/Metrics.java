@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.cache.Cache;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import net.openlcr.server.utils.LatencyHistogram;
+
+/**
+ * Where INVITE time goes, plus the state of the caches, worker pool and
+ * database pool - rendered in the Prometheus text format for /metrics.
+ *
+ * The stage histograms are filled in by the INVITE path (see
+ * MetaswitchPlatformHandler.handleInvite); everything else is read at scrape
+ * time so it costs nothing between scrapes.
+ *
+ * @author mgamble
+ */
+public final class Metrics {
+
+    /* INVITE stages, in the order they happen */
+    public static final LatencyHistogram PARSE = new LatencyHistogram();
+    public static final LatencyHistogram ROUTE_LOOKUP = new LatencyHistogram();
+    public static final LatencyHistogram SOURCE_DID_OVERRIDES = new LatencyHistogram();
+    public static final LatencyHistogram BLACKLIST = new LatencyHistogram();
+    public static final LatencyHistogram CARRIERS = new LatencyHistogram();
+    public static final LatencyHistogram RESPONSE_BUILD = new LatencyHistogram();
+    public static final LatencyHistogram SEND = new LatencyHistogram();
+    /* The whole of handleInvite */
+    public static final LatencyHistogram INVITE = new LatencyHistogram();
+
+    /* Route lookups answered while the database breaker wasn't closed - possibly stale */
+    public static final LongAdder STALE_LOOKUPS = new LongAdder();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private Metrics() {
+    }
+
+    public static String render(InboundHandler handler) {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "openlcr_invite_stage_seconds", "summary", "Time spent in each stage of routing an INVITE");
+        stage(out, "parse", PARSE);
+        stage(out, "route_lookup", ROUTE_LOOKUP);
+        stage(out, "source_did_overrides", SOURCE_DID_OVERRIDES);
+        stage(out, "blacklist", BLACKLIST);
+        stage(out, "carriers", CARRIERS);
+        stage(out, "response_build", RESPONSE_BUILD);
+        stage(out, "send", SEND);
+        stage(out, "total", INVITE);
+
+        header(out, "openlcr_cache_hits_total", "counter", "Cache lookups answered from the cache");
+        cache(out, "openlcr_cache_hits_total", cache -> cache.stats().hitCount());
+        header(out, "openlcr_cache_misses_total", "counter", "Cache lookups that had to load");
+        cache(out, "openlcr_cache_misses_total", cache -> cache.stats().missCount());
+        header(out, "openlcr_cache_load_failures_total", "counter", "Cache loads that threw");
+        cache(out, "openlcr_cache_load_failures_total", cache -> cache.stats().loadExceptionCount());
+        header(out, "openlcr_cache_load_seconds_total", "counter", "Time spent loading cache entries");
+        cache(out, "openlcr_cache_load_seconds_total", cache -> seconds(cache.stats().totalLoadTime()));
+        header(out, "openlcr_cache_evictions_total", "counter", "Entries evicted for size or age");
+        cache(out, "openlcr_cache_evictions_total", cache -> cache.stats().evictionCount());
+        header(out, "openlcr_cache_size", "gauge", "Entries in the cache");
+        cache(out, "openlcr_cache_size", Cache::size);
+
+        ExecutorService executor = handler == null ? null : handler.executor;
+        header(out, "openlcr_executor_queued", "gauge", "SIP messages waiting for a worker thread");
+        value(out, "openlcr_executor_queued", HandlerExecutors.getQueued(executor));
+        header(out, "openlcr_executor_active", "gauge", "SIP messages being handled");
+        value(out, "openlcr_executor_active", HandlerExecutors.getActive(executor));
+        header(out, "openlcr_invites_rejected_total", "counter", "INVITEs rejected or dropped because the server was overloaded");
+        value(out, "openlcr_invites_rejected_total", handler == null ? 0 : handler.getRejectedInvites());
+
+        header(out, "openlcr_transactions", "gauge", "INVITE transactions being tracked for retransmissions");
+        value(out, "openlcr_transactions", LCRServer.getTransactions().size());
+        header(out, "openlcr_retransmissions_absorbed_total", "counter", "INVITE retransmissions answered without routing again");
+        value(out, "openlcr_retransmissions_absorbed_total", LCRServer.getTransactions().getAbsorbed());
+
+        if (LCRServer.logAppender != null) {
+            header(out, "openlcr_log_dropped_total", "counter", "Log messages dropped because the log buffer was full");
+            value(out, "openlcr_log_dropped_total", LCRServer.logAppender.getDropped());
+            header(out, "openlcr_log_buffered", "gauge", "Log messages waiting to be written");
+            value(out, "openlcr_log_buffered", LCRServer.logAppender.getBuffered());
+        }
+
+        ApiSubscription subscription = LCRServer.getApiSubscription();
+        if (subscription != null) {
+            header(out, "openlcr_api_subscription_connected", "gauge", "1 while the change event WebSocket to the API server is open");
+            value(out, "openlcr_api_subscription_connected", subscription.isConnected() ? 1 : 0);
+            header(out, "openlcr_api_events_applied_total", "counter", "Change events from the API server applied to the in-memory state");
+            value(out, "openlcr_api_events_applied_total", subscription.getEventsApplied());
+            header(out, "openlcr_api_events_rejected_total", "counter", "Change events from the API server that didn't parse or weren't understood");
+            value(out, "openlcr_api_events_rejected_total", subscription.getEventsRejected());
+            header(out, "openlcr_api_reconnects_total", "counter", "Reconnects to the API server");
+            value(out, "openlcr_api_reconnects_total", subscription.getReconnects());
+        }
+
+        DatabaseBreaker breaker = LCRServer.getDatabaseBreaker();
+        if (breaker != null) {
+            header(out, "openlcr_db_breaker_state", "gauge", "Database circuit breaker - 0 closed, 1 half open, 2 open");
+            value(out, "openlcr_db_breaker_state", breaker.getState().ordinal());
+            header(out, "openlcr_db_breaker_opened_total", "counter", "Times the database circuit breaker has opened");
+            value(out, "openlcr_db_breaker_opened_total", breaker.getOpened());
+            header(out, "openlcr_db_breaker_rejected_total", "counter", "Database queries not attempted because the breaker was open");
+            value(out, "openlcr_db_breaker_rejected_total", breaker.getRejected());
+            header(out, "openlcr_routing_stale", "gauge", "1 while routing is served from last known good data because the database is failing");
+            value(out, "openlcr_routing_stale", breaker.isStale() ? 1 : 0);
+            header(out, "openlcr_routing_data_age_seconds", "gauge", "Seconds since a database connection was last checked out successfully");
+            value(out, "openlcr_routing_data_age_seconds", (System.currentTimeMillis() - breaker.getLastSuccessMillis()) / 1000);
+            header(out, "openlcr_stale_lookups_total", "counter", "Route lookups answered while the routing data was stale");
+            value(out, "openlcr_stale_lookups_total", STALE_LOOKUPS.sum());
+        }
+        header(out, "openlcr_warming_up", "gauge", "1 while the hot keys from the last run are loading - OPTIONS gets a 503");
+        value(out, "openlcr_warming_up", LCRServer.isWarmingUp() ? 1 : 0);
+
+        HikariPoolMXBean pool = LCRServer.ds.getHikariPoolMXBean();
+        if (pool != null) {
+            header(out, "openlcr_db_connections_active", "gauge", "Database connections in use");
+            value(out, "openlcr_db_connections_active", pool.getActiveConnections());
+            header(out, "openlcr_db_connections_idle", "gauge", "Database connections idle in the pool");
+            value(out, "openlcr_db_connections_idle", pool.getIdleConnections());
+            header(out, "openlcr_db_connections_total", "gauge", "Database connections open");
+            value(out, "openlcr_db_connections_total", pool.getTotalConnections());
+            header(out, "openlcr_db_connections_max", "gauge", "Maximum database connections");
+            value(out, "openlcr_db_connections_max", LCRServer.ds.getMaximumPoolSize());
+            header(out, "openlcr_db_threads_awaiting_connection", "gauge", "Threads waiting for a database connection");
+            value(out, "openlcr_db_threads_awaiting_connection", pool.getThreadsAwaitingConnection());
+        }
+        return out.toString();
+    }
+
+    private static void cache(StringBuilder out, String name, Function<Cache<?, ?>, Object> stat) {
+        cache(out, name, "route", LCRServer.routeCache, stat);
+        cache(out, name, "source_did_route", LCRServer.sourceDIDRouteCache, stat);
+        cache(out, name, "source_did_blacklist", LCRServer.sourceDIDCarrierBlacklist, stat);
+        cache(out, name, "carrier", LCRServer.carrierCache, stat);
+    }
+
+    private static void cache(StringBuilder out, String name, String cacheName, Cache<?, ?> cache, Function<Cache<?, ?>, Object> stat) {
+        out.append(name).append("{cache=\"").append(cacheName).append("\"} ").append(stat.apply(cache)).append('\n');
+    }
+
+    private static void stage(StringBuilder out, String stage, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append("openlcr_invite_stage_seconds{stage=\"").append(stage).append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+        }
+        out.append("openlcr_invite_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(seconds(histogram.getSumNanos())).append('\n');
+        out.append("openlcr_invite_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void value(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
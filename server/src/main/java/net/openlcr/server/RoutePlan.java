@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import net.openlcr.common.classes.Route;
+
+/**
+ * The routes we will actually offer for one call: the source DID overrides (in
+ * priority order) followed by the normal price ordered routes, with any route
+ * to a blacklisted carrier skipped. This is a view over the cached RouteSets -
+ * nothing is copied and the cached sets are never touched.
+ *
+ * @author mgamble
+ */
+public final class RoutePlan implements Iterable<Route> {
+
+    private final RouteSet overrides;
+    private final RouteSet routes;
+    private final Set<Integer> blacklistCarriers;
+
+    public RoutePlan(RouteSet routes) {
+        this(RouteSet.EMPTY, routes, Collections.emptySet());
+    }
+
+    public RoutePlan(RouteSet overrides, RouteSet routes, Set<Integer> blacklistCarriers) {
+        this.overrides = overrides;
+        this.routes = routes;
+        this.blacklistCarriers = blacklistCarriers;
+    }
+
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    public int getOverrideCount() {
+        return overrides.size();
+    }
+
+    @Override
+    public Iterator<Route> iterator() {
+        return new Iterator<Route>() {
+            private int index = 0;
+            private Route next = advance();
+
+            private Route advance() {
+                int total = overrides.size() + routes.size();
+                while (index < total) {
+                    Route route = index < overrides.size() ? overrides.get(index) : routes.get(index - overrides.size());
+                    index++;
+                    if (blacklistCarriers.isEmpty() || !blacklistCarriers.contains(route.getCarrierID())) {
+                        return route;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Route next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Route route = next;
+                next = advance();
+                return route;
+            }
+        };
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import net.openlcr.common.classes.DIDRoute;
+import net.openlcr.common.classes.Route;
+
+/**
+ * Read-only, ordered snapshot of a set of routes. This is what the route and
+ * source DID caches hand out - the same instance is shared by every call
+ * thread, so nothing is allowed to change it once it's built. Per-call changes
+ * (overrides, blacklists) go through a RoutePlan instead.
+ *
+ * The Route objects themselves are shared as well and must be treated as read only.
+ *
+ * @author mgamble
+ */
+public final class RouteSet implements Iterable<Route> {
+
+    public static final RouteSet EMPTY = new RouteSet(new Route[0]);
+
+    private final Route[] routes;
+
+    private RouteSet(Route[] routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Snapshot the routes of a DIDRoute in their current order. Call
+     * orderTargetRoutes() first if they should be price ordered.
+     */
+    public static RouteSet of(DIDRoute didRoute) {
+        if (didRoute.getTargetRoutes().isEmpty()) {
+            return EMPTY;
+        }
+        return new RouteSet(didRoute.getTargetRoutes().toArray(new Route[0]));
+    }
+
+    /* Snapshot a list of routes in the order given */
+    public static RouteSet of(Collection<Route> routes) {
+        if (routes.isEmpty()) {
+            return EMPTY;
+        }
+        return new RouteSet(routes.toArray(new Route[0]));
+    }
+
+    public int size() {
+        return routes.length;
+    }
+
+    public boolean isEmpty() {
+        return routes.length == 0;
+    }
+
+    public Route get(int index) {
+        return routes[index];
+    }
+
+    public boolean containsCarrier(int carrierID) {
+        for (Route route : routes) {
+            if (route.getCarrierID() == carrierID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsRoute(int routeID) {
+        for (Route route : routes) {
+            if (route.getRouteID() == routeID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Route> iterator() {
+        return new Iterator<Route>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < routes.length;
+            }
+
+            @Override
+            public Route next() {
+                if (next >= routes.length) {
+                    throw new NoSuchElementException();
+                }
+                return routes[next++];
+            }
+        };
+    }
+}
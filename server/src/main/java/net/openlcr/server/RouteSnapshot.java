@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.RouteModification;
+import net.openlcr.common.classes.TrunkGroup;
+
+/**
+ * Everything routing needs from the database - active routes, carriers with
+ * their trunk groups, source DID overrides and blacklists - compiled into one
+ * binary file, so a restarted node can route at full speed from the file
+ * before MariaDB has answered a single query. Written by
+ * "LCRServer --config ... --compile-snapshot file" (from cron, or after a
+ * rate deck import), read at startup when snapshotFile is set.
+ *
+ * File layout (big endian):
+ *
+ *    0  "OLCRSNP1"
+ *    8  int    format version
+ *   12  int    header size
+ *   16  long   compiled at (epoch ms)
+ *   24  long   payload length
+ *   32  int    CRC32C of the payload
+ *   36  int    routes
+ *   40  int    carriers
+ *   44  int    billing numbers with overrides / blacklists
+ *   48  payload: carriers, then routes, then billing numbers
+ *
+ * Strings are a short length (-1 for null) and UTF-8; a count or string too
+ * long for a short fails the write. The file is mapped and
+ * checked as a whole before anything in it is used - a truncated or corrupt
+ * snapshot is refused, and the server starts from the database as before.
+ *
+ * @author mgamble
+ */
+public final class RouteSnapshot {
+
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final byte[] MAGIC = {'O', 'L', 'C', 'R', 'S', 'N', 'P', '1'};
+
+    private final long compiledAt;
+    private final List<Route> routes;
+    private final Map<Integer, Carrier> carriers;
+    private final SourceDIDIndex sourceDIDIndex;
+
+    private RouteSnapshot(long compiledAt, List<Route> routes, Map<Integer, Carrier> carriers, SourceDIDIndex sourceDIDIndex) {
+        this.compiledAt = compiledAt;
+        this.routes = routes;
+        this.carriers = carriers;
+        this.sourceDIDIndex = sourceDIDIndex;
+    }
+
+    public long getCompiledAt() {
+        return compiledAt;
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    public Map<Integer, Carrier> getCarriers() {
+        return carriers;
+    }
+
+    public SourceDIDIndex getSourceDIDIndex() {
+        return sourceDIDIndex;
+    }
+
+    /**
+     * Write a snapshot to a temporary file next to file and rename it into
+     * place, so a node starting up never maps a half written snapshot.
+     */
+    public static void write(File file, Collection<Route> routes, Map<Integer, Carrier> carriers, SourceDIDIndex sourceDIDIndex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + routes.size() * 40);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        for (Carrier carrier : carriers.values()) {
+            payload.writeInt(carrier.getCarrierID());
+            payload.writeBoolean(carrier.isUseE164());
+            writeString(payload, carrier.getCarrierName());
+            List<TrunkGroup> trunkGroups = carrier.getTrunkGroups() == null ? Collections.emptyList() : carrier.getTrunkGroups();
+            writeCount(payload, trunkGroups.size(), "trunk groups on a carrier");
+            for (TrunkGroup trunkGroup : trunkGroups) {
+                writeString(payload, trunkGroup.getTrunkGroupID());
+                writeString(payload, trunkGroup.getIpAddress());
+                payload.writeInt(trunkGroup.getPort());
+                payload.writeInt(trunkGroup.getPriority());
+            }
+        }
+        for (Route route : routes) {
+            writeRoute(payload, route);
+            payload.writeDouble(route.getPrice());
+        }
+        long[] billingNumbers = sourceDIDIndex.getBillingNumbers();
+        for (long billingNumber : billingNumbers) {
+            payload.writeLong(billingNumber);
+            RouteSet overrides = sourceDIDIndex.getOverrides(billingNumber);
+            writeCount(payload, overrides.size(), "overrides for a billing number");
+            for (Route route : overrides) {
+                writeRoute(payload, route);
+            }
+            ImmutableSet<Integer> blacklist = sourceDIDIndex.getBlacklist(billingNumber);
+            writeCount(payload, blacklist.size(), "blacklisted carriers for a billing number");
+            for (Integer carrierID : blacklist) {
+                payload.writeInt(carrierID);
+            }
+        }
+        payload.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putLong(System.currentTimeMillis()).putLong(body.length)
+                .putInt((int) crc.getValue()).putInt(routes.size()).putInt(carriers.size()).putInt(billingNumbers.length);
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName() + ".", ".tmp", directory);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temporary)) {
+                out.write(header.array());
+                out.write(body);
+                out.getFD().sync();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Map a snapshot and check it end to end before decoding it. Throws
+     * IOException for anything that isn't a complete, current format snapshot.
+     */
+    public static RouteSnapshot read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a route snapshot (too short)");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a route snapshot");
+            }
+            if (mapped.getInt(8) != VERSION) {
+                throw new IOException(file + " is snapshot format " + mapped.getInt(8) + " - this server reads format " + VERSION + ", recompile it");
+            }
+            int headerSize = mapped.getInt(12);
+            long compiledAt = mapped.getLong(16);
+            long payloadLength = mapped.getLong(24);
+            if (headerSize < HEADER_SIZE || headerSize + payloadLength != channel.size()) {
+                throw new IOException(file + " is truncated - expected " + (headerSize + payloadLength) + " bytes, found " + channel.size());
+            }
+            ByteBuffer payload = mapped.duplicate();
+            payload.position(headerSize);
+            CRC32C crc = new CRC32C();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != mapped.getInt(32)) {
+                throw new IOException(file + " failed its checksum");
+            }
+            RouteSnapshot snapshot;
+            try {
+                snapshot = decode(payload, compiledAt, mapped.getInt(36), mapped.getInt(40), mapped.getInt(44));
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                throw new IOException(file + " could not be decoded: " + ex, ex);
+            }
+            /* Counts that disagree with the payload can still decode without running off the end */
+            if (payload.hasRemaining()) {
+                throw new IOException(file + " could not be decoded: " + payload.remaining() + " bytes left over after the last billing number");
+            }
+            return snapshot;
+        }
+    }
+
+    private static RouteSnapshot decode(ByteBuffer payload, long compiledAt, int routeCount, int carrierCount, int billingNumberCount) {
+        Map<Integer, Carrier> carriers = new HashMap<>(carrierCount * 2);
+        for (int i = 0; i < carrierCount; i++) {
+            Carrier carrier = new Carrier();
+            carrier.setActive(true);
+            carrier.setCarrierID(payload.getInt());
+            carrier.setUseE164(payload.get() != 0);
+            carrier.setCarrierName(readString(payload));
+            int trunkGroups = payload.getShort();
+            for (int t = 0; t < trunkGroups; t++) {
+                TrunkGroup trunkGroup = new TrunkGroup();
+                trunkGroup.setCarrerID(carrier.getCarrierID());
+                trunkGroup.setTrunkGroupID(readString(payload));
+                trunkGroup.setIpAddress(readString(payload));
+                trunkGroup.setPort(payload.getInt());
+                trunkGroup.setPriority(payload.getInt());
+                carrier.addTrunkGroup(trunkGroup);
+            }
+            carriers.put(carrier.getCarrierID(), carrier);
+        }
+        List<Route> routes = new ArrayList<>(routeCount);
+        for (int i = 0; i < routeCount; i++) {
+            Route route = readRoute(payload);
+            route.setPrice(payload.getDouble());
+            routes.add(route);
+        }
+        SourceDIDIndex.Builder builder = new SourceDIDIndex.Builder();
+        for (int i = 0; i < billingNumberCount; i++) {
+            long billingNumber = payload.getLong();
+            int overrides = payload.getShort();
+            for (int o = 0; o < overrides; o++) {
+                builder.addOverride(billingNumber, readRoute(payload));
+            }
+            int blacklist = payload.getShort();
+            for (int b = 0; b < blacklist; b++) {
+                builder.addBlacklist(billingNumber, payload.getInt());
+            }
+        }
+        return new RouteSnapshot(compiledAt, routes, Collections.unmodifiableMap(carriers), builder.build());
+    }
+
+    /* Route fields common to routes and source DID overrides - overrides have no price */
+    private static void writeRoute(DataOutputStream out, Route route) throws IOException {
+        out.writeInt(route.getRouteID());
+        out.writeInt(route.getCarrierID());
+        writeString(out, route.getDigits());
+        writeString(out, route.getRouteModification() == null ? null : route.getRouteModification().name());
+        writeString(out, route.getModificationString());
+    }
+
+    private static Route readRoute(ByteBuffer in) {
+        Route route = new Route();
+        route.setActive(true);
+        route.setRouteID(in.getInt());
+        route.setCarrierID(in.getInt());
+        route.setDigits(readString(in));
+        String modification = readString(in);
+        if (modification != null) {
+            route.setRouteModification(RouteModification.valueOf(modification));
+        }
+        String modificationString = readString(in);
+        if (modificationString != null) {
+            route.setModificationString(modificationString);
+        }
+        return route;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeCount(out, bytes.length, "bytes in a string");
+        out.write(bytes);
+    }
+
+    /* Counts and string lengths are shorts - refuse to write one that doesn't fit rather than wrap it */
+    private static void writeCount(DataOutputStream out, int count, String what) throws IOException {
+        if (count > Short.MAX_VALUE) {
+            throw new IOException("Can't write a route snapshot with " + count + " " + what + " - the format allows " + Short.MAX_VALUE);
+        }
+        out.writeShort(count);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
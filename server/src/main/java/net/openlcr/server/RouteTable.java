@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import net.openlcr.common.classes.DIDRoute;
+import net.openlcr.common.classes.Route;
+
+/**
+ * Immutable digit trie over every active route. A lookup walks the dialed
+ * number one digit at a time and collects the routes hanging off each prefix
+ * node, which gives the same answer as the old LEFT(number, LENGTH(digits))
+ * query without going to the database.
+ *
+ * Every number whose longest routed prefix is the same gets the same answer,
+ * so answers are cached by that prefix rather than by the full number - a few
+ * thousand entries cover the whole rate deck no matter what is being dialed.
+ *
+ * The trie is never modified once built - a reload builds a new one and a
+ * change sync copies just the nodes on the changed path (see apply), and
+ * either way the result is swapped in by LCRServer. Each table has its own
+ * route ID map too, so an older table being read elsewhere never changes.
+ *
+ * @author mgamble
+ */
+public final class RouteTable {
+
+    /* The SQL lookup also required digits LIKE LEFT(number, 2) - so single digit prefixes never matched. Keep that behaviour. */
+    static final int MIN_PREFIX_LENGTH = 2;
+
+    private static final Route[] NO_ROUTES = new Route[0];
+
+    private final Node root;
+    private final int routeCount;
+    /* Where each route lives in this table - never modified once the table is built */
+    private final Map<Integer, Route> routesById;
+    /* Answers by matched prefix. Each table has its own, since the answer for a prefix depends on everything above it */
+    private final Cache<String, RouteSet> answers;
+
+    private RouteTable(Node root, int routeCount, Map<Integer, Route> routesById) {
+        this.root = root;
+        this.routeCount = routeCount;
+        this.routesById = routesById;
+        this.answers = CacheBuilder.newBuilder().maximumSize(LCRServer.getServerConfiguration().getRouteAnswerCacheSize()).recordStats().build();
+    }
+
+    public Cache<String, RouteSet> getAnswerCache() {
+        return answers;
+    }
+
+    public int getRouteCount() {
+        return routeCount;
+    }
+
+    public Collection<Route> getRoutes() {
+        return Collections.unmodifiableCollection(routesById.values());
+    }
+
+    /* IDs of every route whose digits start with prefix */
+    public List<Integer> routeIDsWithPrefix(String prefix) {
+        List<Integer> routeIDs = new ArrayList<>();
+        for (Route route : routesById.values()) {
+            if (route.getDigits().startsWith(prefix)) {
+                routeIDs.add(route.getRouteID());
+            }
+        }
+        return routeIDs;
+    }
+
+    /**
+     * Build a new table with the given routes added or replaced and the given
+     * route IDs dropped. Only the nodes along each changed path are copied, the
+     * rest of the trie is shared with this table. This table is left as it
+     * was, so apply has no side effects and a failure part way through
+     * changes nothing.
+     */
+    public RouteTable apply(Collection<Route> upserts, Collection<Integer> removedRouteIDs) {
+        Map<Integer, Route> routesById = new HashMap<>(this.routesById);
+        Node newRoot = root;
+        int count = routeCount;
+        Set<String> changedDigits = new HashSet<>();
+        for (Integer routeID : removedRouteIDs) {
+            Route existing = routesById.remove(routeID);
+            if (existing != null) {
+                newRoot = update(newRoot, existing.getDigits(), 0, routeID, null);
+                changedDigits.add(existing.getDigits());
+                count--;
+            }
+        }
+        for (Route route : upserts) {
+            Route existing = routesById.remove(route.getRouteID());
+            if (existing != null) {
+                newRoot = update(newRoot, existing.getDigits(), 0, existing.getRouteID(), null);
+                changedDigits.add(existing.getDigits());
+                count--;
+            }
+            if (isDigits(route.getDigits()) && route.getDigits().length() >= MIN_PREFIX_LENGTH) {
+                newRoot = update(newRoot, route.getDigits(), 0, route.getRouteID(), route);
+                routesById.put(route.getRouteID(), route);
+                changedDigits.add(route.getDigits());
+                count++;
+            }
+        }
+        RouteTable table = new RouteTable(newRoot, count, routesById);
+        /* Carry over every cached answer that sits above or beside the changes - only prefixes at or below a changed node can differ */
+        for (Map.Entry<String, RouteSet> answer : answers.asMap().entrySet()) {
+            if (!hasPrefixIn(answer.getKey(), changedDigits)) {
+                table.answers.put(answer.getKey(), answer.getValue());
+            }
+        }
+        return table;
+    }
+
+    /* Looks up each prefix of key (a dozen or so) rather than testing key against every changed digit string */
+    private static boolean hasPrefixIn(String key, Set<String> digits) {
+        for (int length = key.length(); length >= MIN_PREFIX_LENGTH; length--) {
+            if (digits.contains(key.substring(0, length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Copy the path down to digits, dropping routeID from the target node and adding replacement (if any) */
+    private static Node update(Node node, String digits, int depth, int routeID, Route replacement) {
+        if (depth == digits.length()) {
+            Route[] current = node == null ? NO_ROUTES : node.routes;
+            ArrayList<Route> routes = new ArrayList<>(current.length + 1);
+            for (Route route : current) {
+                if (route.getRouteID() != routeID) {
+                    routes.add(route);
+                }
+            }
+            if (replacement != null) {
+                routes.add(replacement);
+            }
+            return new Node(node == null ? null : node.children, routes.toArray(NO_ROUTES));
+        }
+        if (node == null && replacement == null) {
+            return null;
+        }
+        Node[] children = node == null || node.children == null ? new Node[10] : Arrays.copyOf(node.children, 10);
+        int digit = digits.charAt(depth) - '0';
+        children[digit] = update(children[digit], digits, depth + 1, routeID, replacement);
+        return new Node(children, node == null ? NO_ROUTES : node.routes);
+    }
+
+    /**
+     * Find every route whose digits are a prefix of the target number, price ordered.
+     */
+    public RouteSet lookup(String targetNumber) {
+        int length = matchedPrefixLength(targetNumber);
+        if (length == 0) {
+            return RouteSet.EMPTY;
+        }
+        String prefix = length == targetNumber.length() ? targetNumber : targetNumber.substring(0, length);
+        RouteSet answer = answers.getIfPresent(prefix);
+        if (answer == null) {
+            answer = collect(prefix);
+            answers.put(prefix, answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Length of the longest prefix of the number that has routes of its own, or
+     * 0 if nothing matches. Any two numbers with the same matched prefix get the
+     * same answer.
+     */
+    public int matchedPrefixLength(String targetNumber) {
+        int matched = 0;
+        Node node = root;
+        for (int i = 0; i < targetNumber.length(); i++) {
+            int digit = targetNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || node.children == null) {
+                break;
+            }
+            node = node.children[digit];
+            if (node == null) {
+                break;
+            }
+            if (node.routes.length > 0) {
+                matched = i + 1;
+            }
+        }
+        return matched;
+    }
+
+    private RouteSet collect(String prefix) {
+        DIDRoute routes = new DIDRoute();
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children == null ? null : node.children[prefix.charAt(i) - '0'];
+            if (node != null) {
+                for (Route route : node.routes) {
+                    routes.addTargetRoute(route);
+                }
+            }
+        }
+        routes.orderTargetRoutes();
+        return RouteSet.of(routes);
+    }
+
+    /**
+     * Build a table from a set of routes. The routes are bucketed on their first
+     * two digits and each bucket is built on its own thread.
+     */
+    public static RouteTable build(Collection<Route> routes) {
+        @SuppressWarnings("unchecked")
+        final List<Route>[] buckets = new List[100];
+        int count = 0;
+        Map<Integer, Route> routesById = new HashMap<>(routes.size() * 2);
+        for (Route route : routes) {
+            String digits = route.getDigits();
+            if (!isDigits(digits) || digits.length() < MIN_PREFIX_LENGTH) {
+                continue;
+            }
+            int bucket = (digits.charAt(0) - '0') * 10 + (digits.charAt(1) - '0');
+            if (buckets[bucket] == null) {
+                buckets[bucket] = new ArrayList<>();
+            }
+            buckets[bucket].add(route);
+            routesById.put(route.getRouteID(), route);
+            count++;
+        }
+
+        final Node[] subtrees = new Node[100];
+        IntStream.range(0, 100).parallel().filter(i -> buckets[i] != null).forEach(i -> {
+            MutableNode node = new MutableNode();
+            for (Route route : buckets[i]) {
+                node.insert(route, MIN_PREFIX_LENGTH);
+            }
+            subtrees[i] = node.freeze();
+        });
+
+        Node[] firstDigits = new Node[10];
+        for (int first = 0; first < 10; first++) {
+            Node[] second = new Node[10];
+            boolean any = false;
+            for (int i = 0; i < 10; i++) {
+                second[i] = subtrees[first * 10 + i];
+                any |= second[i] != null;
+            }
+            if (any) {
+                firstDigits[first] = new Node(second, NO_ROUTES);
+            }
+        }
+        return new RouteTable(new Node(firstDigits, NO_ROUTES), count, routesById);
+    }
+
+    static boolean isDigits(String digits) {
+        if (digits == null || digits.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final class Node {
+
+        final Node[] children;
+        final Route[] routes;
+
+        Node(Node[] children, Route[] routes) {
+            this.children = children;
+            this.routes = routes;
+        }
+    }
+
+    private static final class MutableNode {
+
+        MutableNode[] children;
+        List<Route> routes;
+
+        void insert(Route route, int depth) {
+            String digits = route.getDigits();
+            if (depth == digits.length()) {
+                if (routes == null) {
+                    routes = new ArrayList<>(2);
+                }
+                routes.add(route);
+                return;
+            }
+            if (children == null) {
+                children = new MutableNode[10];
+            }
+            int digit = digits.charAt(depth) - '0';
+            if (children[digit] == null) {
+                children[digit] = new MutableNode();
+            }
+            children[digit].insert(route, depth + 1);
+        }
+
+        Node freeze() {
+            Node[] frozen = null;
+            if (children != null) {
+                frozen = new Node[10];
+                for (int i = 0; i < 10; i++) {
+                    if (children[i] != null) {
+                        frozen[i] = children[i].freeze();
+                    }
+                }
+            }
+            return new Node(frozen, routes == null ? NO_ROUTES : routes.toArray(NO_ROUTES));
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.openlcr.common.classes.Route;
+import org.apache.log4j.Logger;
+
+/**
+ * Every routing decision, as a fixed 128 byte binary record appended to a
+ * memory-mapped segment file - no formatting, no syscall, just a handful of
+ * stores into the page cache. Segments are segmentBytes long and named
+ * routing-yyyyMMdd-HHmmss-N.journal; when one fills the next is mapped, and
+ * only the newest maxSegments are kept.
+ *
+ * Segment layout: "OLCRJNL1", int record size, int version, then records.
+ *
+ * Record layout (big endian):
+ *
+ *    0  long   time (epoch ms) - written last, 0 means empty / unfinished
+ *    8  long   Call-ID hash (FNV-1a 64 of the Call-ID)
+ *   16  long   dialed number (country code + national number), -1 unknown
+ *   24  long   charge number (national), -1 none
+ *   32  short  SIP result code
+ *   34  byte   trunks stored below
+ *   35  byte   trunks offered in the Contact header (can be more than were stored)
+ *   36  byte   source DID override routes in front
+ *   37  byte   unused
+ *   38  short  routes in the plan
+ *   40  5 x (int route ID, int carrier ID, 8 bytes trunk group ID) in the
+ *          order offered
+ *  120  8 bytes unused
+ *
+ * The route ID is the plan route the carrier was offered for (the first
+ * one naming it), 0 if none did. Trunk group IDs are ASCII, zero padded,
+ * and cut to their first 8 characters.
+ *
+ * If a segment can't be opened or written, records are dropped (and
+ * counted) until a fresh segment can be opened - that's retried once a
+ * minute.
+ *
+ * Run main() to decode segments to text.
+ *
+ * @author mgamble
+ */
+public final class RoutingJournal {
+
+    public static final int RECORD_SIZE = 128;
+    public static final int MAX_TRUNKS = 5;
+    private static final int TRUNK_ID_BYTES = 8;
+    private static final int ENTRY_SIZE = 8 + TRUNK_ID_BYTES;
+    private static final int HEADER_SIZE = 16;
+    private static final int VERSION = 3;
+    private static final int MAX_SEGMENT_MB = 1024;
+    private static final long RETRY_MILLIS = 60000;
+    private static final byte[] MAGIC = {'O', 'L', 'C', 'R', 'J', 'N', 'L', '1'};
+
+    private final Logger logger;
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final AtomicInteger segmentNumber = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Segment segment;
+    /* Non-zero after a failure - when to try opening a fresh segment */
+    volatile long retryAt = 0;
+
+    public RoutingJournal(Logger logger, String directory, int segmentMegabytes, int maxSegments) throws IOException {
+        this.logger = logger;
+        this.directory = new File(directory);
+        /* A segment is one mapping, so it has to stay well inside an int */
+        int megabytes = Math.max(1, Math.min(segmentMegabytes, MAX_SEGMENT_MB));
+        if (megabytes != segmentMegabytes) {
+            logger.warn("journalSegmentMB " + segmentMegabytes + " is out of range - using " + megabytes);
+        }
+        this.segmentBytes = (int) (HEADER_SIZE + ((megabytes * 1024L * 1024L - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE);
+        this.maxSegments = maxSegments;
+        Files.createDirectories(this.directory.toPath());
+        this.segment = openSegment();
+    }
+
+    /**
+     * Append one decision - offered is what went in the Contact header, or
+     * null if nothing was offered. Never throws - if the journal can't be
+     * written the record is dropped.
+     */
+    public void record(String callID, String dialedNumber, long chargeNumber, int resultCode, Iterable<Route> plan, int overrideCount, ContactTemplate.Entry[] offered) {
+        if (retryAt != 0 && !reopen()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            Segment current = segment;
+            int offset = current.reserve();
+            while (offset < 0) {
+                current = rotate(current);
+                offset = current.reserve();
+            }
+            ByteBuffer buffer = current.buffer;
+            buffer.putLong(offset + 8, hash(callID));
+            buffer.putLong(offset + 16, parseNumber(dialedNumber));
+            buffer.putLong(offset + 24, chargeNumber);
+            buffer.putShort(offset + 32, (short) resultCode);
+            int trunks = offered == null ? 0 : offered.length;
+            int stored = Math.min(trunks, MAX_TRUNKS);
+            buffer.put(offset + 34, (byte) stored);
+            buffer.put(offset + 35, (byte) Math.min(trunks, 255));
+            buffer.put(offset + 36, (byte) Math.min(overrideCount, 255));
+            for (int i = 0; i < stored; i++) {
+                int entry = offset + 40 + i * ENTRY_SIZE;
+                buffer.putInt(entry, 0);
+                buffer.putInt(entry + 4, offered[i].getCarrier().getCarrierID());
+                String trunkGroupID = offered[i].getTrunk().getTrunkGroupID();
+                for (int c = 0; c < TRUNK_ID_BYTES; c++) {
+                    char ch = trunkGroupID != null && c < trunkGroupID.length() ? trunkGroupID.charAt(c) : 0;
+                    buffer.put(entry + 8 + c, (byte) (ch < 128 ? ch : '?'));
+                }
+            }
+            /* A carrier is offered for the first route in the plan that names it */
+            int routes = 0;
+            if (plan != null) {
+                for (Route route : plan) {
+                    routes++;
+                    for (int i = 0; i < stored; i++) {
+                        int entry = offset + 40 + i * ENTRY_SIZE;
+                        if (buffer.getInt(entry) == 0 && buffer.getInt(entry + 4) == route.getCarrierID()) {
+                            buffer.putInt(entry, route.getRouteID());
+                        }
+                    }
+                }
+            }
+            buffer.putShort(offset + 38, (short) Math.min(routes, Short.MAX_VALUE));
+            buffer.putLong(offset, System.currentTimeMillis());
+        } catch (IOException | RuntimeException ex) {
+            dropped.incrementAndGet();
+            retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+            logger.error("Routing journal could not write to " + directory + " - dropping records, will try a new segment in " + (RETRY_MILLIS / 1000) + "s: " + ex, ex);
+        }
+    }
+
+    /* Records dropped because the journal couldn't be written */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /* After a failure, try a fresh segment once retryAt has passed - true if we're writing again */
+    private synchronized boolean reopen() {
+        if (retryAt == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < retryAt) {
+            return false;
+        }
+        try {
+            segment = openSegment();
+            pruneSegments();
+            retryAt = 0;
+            logger.info("Routing journal writing again after dropping " + dropped.get() + " records so far");
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+            logger.warn("Routing journal still can't open a segment in " + directory + ": " + ex);
+            return false;
+        }
+    }
+
+    /* Flush the current segment - called at shutdown */
+    public void close() {
+        segment.buffer.force();
+    }
+
+    private synchronized Segment rotate(Segment full) throws IOException {
+        if (segment != full) {
+            return segment;
+        }
+        full.buffer.force();
+        Segment next = openSegment();
+        segment = next;
+        pruneSegments();
+        return next;
+    }
+
+    private Segment openSegment() throws IOException {
+        String name = "routing-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + segmentNumber.incrementAndGet() + ".journal";
+        File file = new File(directory, name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.put(0, MAGIC);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, VERSION);
+            logger.info("Routing journal writing to " + file);
+            return new Segment(buffer, segmentBytes);
+        }
+    }
+
+    private void pruneSegments() {
+        File[] segments = segmentFiles(directory);
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            if (!segments[i].delete()) {
+                logger.warn("Could not remove old routing journal segment " + segments[i]);
+            }
+        }
+    }
+
+    /* Journal segments in a directory, oldest first */
+    private static File[] segmentFiles(File directory) {
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith("routing-") && name.endsWith(".journal"));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, (a, b) -> Long.compare(a.lastModified(), b.lastModified()) != 0 ? Long.compare(a.lastModified(), b.lastModified()) : a.getName().compareTo(b.getName()));
+        return segments;
+    }
+
+    /* FNV-1a, 64 bit */
+    public static long hash(String value) {
+        if (value == null) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long parseNumber(String number) {
+        if (number == null || number.isEmpty() || number.length() > 18 || !RouteTable.isDigits(number)) {
+            return -1;
+        }
+        return Long.parseLong(number);
+    }
+
+    private static final class Segment {
+
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+
+        Segment(MappedByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        /* Offset of a free record slot, or -1 if this segment is full */
+        int reserve() {
+            int offset = position.getAndAdd(RECORD_SIZE);
+            return offset + RECORD_SIZE <= capacity ? offset : -1;
+        }
+    }
+
+    /**
+     * Decode journal segments to text, one line per call.
+     *
+     * Usage: RoutingJournal [--callid Call-ID] file-or-directory...
+     */
+    public static void main(String[] args) throws IOException {
+        long callIDHash = 0;
+        boolean filter = false;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--callid") && i + 1 < args.length) {
+                callIDHash = hash(args[++i]);
+                filter = true;
+            } else {
+                File file = new File(args[i]);
+                files.addAll(Arrays.asList(file.isDirectory() ? segmentFiles(file) : new File[]{file}));
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("Usage: RoutingJournal [--callid Call-ID] file-or-directory...");
+            System.exit(1);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (File file : files) {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.getInt(8) != RECORD_SIZE) {
+                System.err.println("Skipping " + file + " - not a routing journal segment");
+                continue;
+            }
+            if (buffer.getInt(12) != VERSION) {
+                System.err.println("Skipping " + file + " - journal format " + buffer.getInt(12) + ", this decoder reads format " + VERSION);
+                continue;
+            }
+            for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= bytes.length; offset += RECORD_SIZE) {
+                long time = buffer.getLong(offset);
+                if (time == 0) {
+                    continue;
+                }
+                long hash = buffer.getLong(offset + 8);
+                if (filter && hash != callIDHash) {
+                    continue;
+                }
+                StringBuilder line = new StringBuilder(160);
+                line.append(format.format(new Date(time)))
+                        .append(" call=").append(String.format("%016x", hash))
+                        .append(" dialed=").append(buffer.getLong(offset + 16))
+                        .append(" charge=").append(buffer.getLong(offset + 24))
+                        .append(" result=").append(buffer.getShort(offset + 32))
+                        .append(" trunks=").append(buffer.get(offset + 35) & 0xff)
+                        .append(" overrides=").append(buffer.get(offset + 36) & 0xff)
+                        .append(" routes=").append(buffer.getShort(offset + 38))
+                        .append(" [");
+                int stored = Math.min(buffer.get(offset + 34) & 0xff, MAX_TRUNKS);
+                for (int i = 0; i < stored; i++) {
+                    int entry = offset + 40 + i * ENTRY_SIZE;
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(buffer.getInt(entry)).append(':').append(buffer.getInt(entry + 4)).append(':');
+                    for (int c = 0; c < TRUNK_ID_BYTES && bytes[entry + 8 + c] != 0; c++) {
+                        line.append((char) bytes[entry + 8 + c]);
+                    }
+                }
+                System.out.println(line.append(']'));
+            }
+        }
+    }
+}
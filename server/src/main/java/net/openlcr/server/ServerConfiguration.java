@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+/**
+ * Server-only tuning settings. These are read from the same JSON config file as
+ * SystemConfiguration (gson ignores the keys it doesn't know about), so the
+ * defaults below apply whenever a key is left out.
+ *
+ * @author mgamble
+ */
+public class ServerConfiguration {
+
+    /* Logging - level, and whether the file is written from a bounded async buffer */
+    private String logLevel = "INFO";
+    private boolean asyncLogging = true;
+    private int logBufferSize = 8192;
+
+    /* In-memory route table */
+    private boolean routeTableEnabled = true;
+    private int routeTableReloadMinutes = 15;
+    private int routeAnswerCacheSize = 50000;
+
+    /* Incremental change sync */
+    private boolean changeSyncEnabled = true;
+    private int changeSyncSeconds = 5;
+
+    /* Bulk carrier / trunk group preload */
+    private boolean carrierPreloadEnabled = true;
+    private int carrierPreloadMinutes = 60;
+
+    /* Bulk source DID override / blacklist preload */
+    private boolean sourceDIDPreloadEnabled = true;
+    private int sourceDIDPreloadMinutes = 60;
+
+    /* Threads used to refresh cache entries in the background */
+    private int cacheLoaderThreads = 4;
+
+    /* How SIP messages are handled - "platform" threads or "virtual" threads (Java 21+) */
+    private String executionMode = HandlerExecutors.PLATFORM;
+    private int workerThreads = 100;
+
+    /* Overload control - past admissionQueueSize waiting messages new INVITEs are answered "reject" (503 + Retry-After) or "drop"ped */
+    private int admissionQueueSize = 1000;
+    private String overloadAction = "reject";
+    private int overloadRetryAfterSeconds = 5;
+
+    /* Native epoll transport - udpSockets reuse-port sockets, 0 = one per core */
+    private boolean epollEnabled = false;
+    private int udpSockets = 0;
+
+    /* SIP over TCP on the same address - tcpWorkerThreads 0 = Netty's default (2 per core) */
+    private boolean tcpEnabled = true;
+    private int tcpWorkerThreads = 0;
+
+    /* INVITE retransmission absorption - entries live for Timer H (64*T1) */
+    private boolean transactionTableEnabled = true;
+    private int transactionTimeoutSeconds = 32;
+    private int maxTransactions = 200000;
+
+    /* Route on the network thread instead of the worker pool when everything is in memory - needs asyncLogging */
+    private boolean inlineRoutingEnabled = false;
+
+    /* Binary journal of every routing decision - journalSegmentMB per file, newest journalMaxSegments kept */
+    private boolean journalEnabled = false;
+    private String journalDirectory = "/var/log/openlcr/journal";
+    private int journalSegmentMB = 64;
+    private int journalMaxSegments = 16;
+
+    /* HTTP server for /metrics - no authentication, so loopback unless the monitoring network is trusted */
+    private boolean managementEnabled = true;
+    private String managementAddress = "127.0.0.1";
+    private int managementPort = 9180;
+
+    /* Push change events from the API server - reconnects back off from apiReconnectMinSeconds up to apiReconnectMaxSeconds */
+    private boolean apiSubscriptionEnabled = false;
+    private String apiUrl = "ws://127.0.0.1:8080/api/changes";
+    private String apiToken = "";
+    private int apiReconnectMinSeconds = 1;
+    private int apiReconnectMaxSeconds = 60;
+
+    /* Compiled route snapshot (see RouteSnapshot) to route from at startup - ignored once older than snapshotMaxAgeHours */
+    private String snapshotFile = "";
+    private int snapshotMaxAgeHours = 24;
+
+    /* Database timeouts (dbCallQueryTimeoutSeconds is for the single-key loads a call can wait on), and the circuit breaker that stops waiting on a failing database - see DatabaseBreaker */
+    private int dbConnectionTimeoutMs = 2000;
+    private int dbQueryTimeoutMs = 10000;
+    private int dbCallQueryTimeoutSeconds = 2;
+    private boolean dbBreakerEnabled = true;
+    private int dbBreakerWindowSize = 20;
+    private int dbBreakerMinimumCalls = 5;
+    private int dbBreakerFailureRatePercent = 50;
+    private int dbBreakerOpenSeconds = 30;
+
+    /* Hot key file (see HotKeys) - saved every hotKeysSaveMinutes, loaded at startup before OPTIONS gets a 200 */
+    private String hotKeysFile = "";
+    private int hotKeysMax = 5000;
+    private int hotKeysSaveMinutes = 5;
+    private int hotKeysWarmupThreads = 8;
+    private int hotKeysWarmupTimeoutSeconds = 60;
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public boolean isAsyncLogging() {
+        return asyncLogging;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public boolean isRouteTableEnabled() {
+        return routeTableEnabled;
+    }
+
+    public int getRouteTableReloadMinutes() {
+        return routeTableReloadMinutes;
+    }
+
+    public int getRouteAnswerCacheSize() {
+        return routeAnswerCacheSize;
+    }
+
+    public boolean isChangeSyncEnabled() {
+        return changeSyncEnabled;
+    }
+
+    public int getChangeSyncSeconds() {
+        return changeSyncSeconds;
+    }
+
+    public boolean isCarrierPreloadEnabled() {
+        return carrierPreloadEnabled;
+    }
+
+    public int getCarrierPreloadMinutes() {
+        return carrierPreloadMinutes;
+    }
+
+    public boolean isSourceDIDPreloadEnabled() {
+        return sourceDIDPreloadEnabled;
+    }
+
+    public int getSourceDIDPreloadMinutes() {
+        return sourceDIDPreloadMinutes;
+    }
+
+    public int getCacheLoaderThreads() {
+        return cacheLoaderThreads;
+    }
+
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getAdmissionQueueSize() {
+        return admissionQueueSize;
+    }
+
+    public String getOverloadAction() {
+        return overloadAction;
+    }
+
+    public int getOverloadRetryAfterSeconds() {
+        return overloadRetryAfterSeconds;
+    }
+
+    public boolean isEpollEnabled() {
+        return epollEnabled;
+    }
+
+    public int getUdpSockets() {
+        return udpSockets;
+    }
+
+    public boolean isTcpEnabled() {
+        return tcpEnabled;
+    }
+
+    public int getTcpWorkerThreads() {
+        return tcpWorkerThreads;
+    }
+
+    public boolean isTransactionTableEnabled() {
+        return transactionTableEnabled;
+    }
+
+    public int getTransactionTimeoutSeconds() {
+        return transactionTimeoutSeconds;
+    }
+
+    public int getMaxTransactions() {
+        return maxTransactions;
+    }
+
+    public boolean isInlineRoutingEnabled() {
+        return inlineRoutingEnabled;
+    }
+
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public int getJournalSegmentMB() {
+        return journalSegmentMB;
+    }
+
+    public int getJournalMaxSegments() {
+        return journalMaxSegments;
+    }
+
+    public boolean isManagementEnabled() {
+        return managementEnabled;
+    }
+
+    public String getManagementAddress() {
+        return managementAddress;
+    }
+
+    public int getManagementPort() {
+        return managementPort;
+    }
+
+    public boolean isApiSubscriptionEnabled() {
+        return apiSubscriptionEnabled;
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    public String getApiToken() {
+        return apiToken;
+    }
+
+    public int getApiReconnectMinSeconds() {
+        return apiReconnectMinSeconds;
+    }
+
+    public int getApiReconnectMaxSeconds() {
+        return apiReconnectMaxSeconds;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public int getSnapshotMaxAgeHours() {
+        return snapshotMaxAgeHours;
+    }
+
+    public int getDbConnectionTimeoutMs() {
+        return dbConnectionTimeoutMs;
+    }
+
+    public int getDbQueryTimeoutMs() {
+        return dbQueryTimeoutMs;
+    }
+
+    public int getDbCallQueryTimeoutSeconds() {
+        return dbCallQueryTimeoutSeconds;
+    }
+
+    public boolean isDbBreakerEnabled() {
+        return dbBreakerEnabled;
+    }
+
+    public int getDbBreakerWindowSize() {
+        return dbBreakerWindowSize;
+    }
+
+    public int getDbBreakerMinimumCalls() {
+        return dbBreakerMinimumCalls;
+    }
+
+    public int getDbBreakerFailureRatePercent() {
+        return dbBreakerFailureRatePercent;
+    }
+
+    public int getDbBreakerOpenSeconds() {
+        return dbBreakerOpenSeconds;
+    }
+
+    public String getHotKeysFile() {
+        return hotKeysFile;
+    }
+
+    public int getHotKeysMax() {
+        return hotKeysMax;
+    }
+
+    public int getHotKeysSaveMinutes() {
+        return hotKeysSaveMinutes;
+    }
+
+    public int getHotKeysWarmupThreads() {
+        return hotKeysWarmupThreads;
+    }
+
+    public int getHotKeysWarmupTimeoutSeconds() {
+        return hotKeysWarmupTimeoutSeconds;
+    }
+
+}
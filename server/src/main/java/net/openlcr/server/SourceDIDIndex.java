@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.openlcr.common.classes.Route;
+
+/**
+ * Every source DID override and carrier blacklist, keyed by the billing
+ * number as a long. Nearly every call has neither, so lookups go through a
+ * small Bloom filter first - a miss there costs a few multiplies and no
+ * allocation, and only the rare possible hit does a binary search.
+ *
+ * Immutable - changes build a new index which LCRServer swaps in.
+ *
+ * @author mgamble
+ */
+public final class SourceDIDIndex {
+
+    private static final int HASHES = 3;
+
+    private final long[] billingNumbers;
+    private final RouteSet[] overrides;
+    private final ImmutableSet<Integer>[] blacklists;
+    private final long[] bloom;
+    private final int bloomMask;
+
+    @SuppressWarnings("unchecked")
+    private SourceDIDIndex(Map<Long, Entry> entries) {
+        int size = entries.size();
+        this.billingNumbers = new long[size];
+        this.overrides = new RouteSet[size];
+        this.blacklists = new ImmutableSet[size];
+        int i = 0;
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            billingNumbers[i] = entry.getKey();
+            overrides[i] = entry.getValue().overrides;
+            blacklists[i] = entry.getValue().blacklist;
+            i++;
+        }
+        /* 16 bits per key keeps false positives well under 1% */
+        int bits = Integer.highestOneBit(Math.max(64, size * 16) - 1) << 1;
+        this.bloom = new long[bits >>> 6];
+        this.bloomMask = bits - 1;
+        for (long billingNumber : billingNumbers) {
+            long hash = mix(billingNumber);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int k = 0; k < HASHES; k++) {
+                int bit = (h1 + k * h2) & bloomMask;
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    public int size() {
+        return billingNumbers.length;
+    }
+
+    /* Every billing number with an override or a blacklist, ascending */
+    public long[] getBillingNumbers() {
+        return billingNumbers.clone();
+    }
+
+    public RouteSet getOverrides(long billingNumber) {
+        int index = find(billingNumber);
+        return index < 0 ? RouteSet.EMPTY : overrides[index];
+    }
+
+    public ImmutableSet<Integer> getBlacklist(long billingNumber) {
+        int index = find(billingNumber);
+        return index < 0 ? ImmutableSet.of() : blacklists[index];
+    }
+
+    /* Billing numbers with an override that points at the given carrier */
+    public List<Long> billingNumbersUsingCarrier(int carrierID) {
+        List<Long> found = new ArrayList<>();
+        for (int i = 0; i < billingNumbers.length; i++) {
+            if (overrides[i].containsCarrier(carrierID)) {
+                found.add(billingNumbers[i]);
+            }
+        }
+        return found;
+    }
+
+    /* Copy of this index with the overrides for one billing number replaced */
+    public SourceDIDIndex withOverrides(long billingNumber, RouteSet routes) {
+        return with(Collections.singletonMap(billingNumber, routes), Collections.emptyMap());
+    }
+
+    /* Copy of this index with the blacklist for one billing number replaced */
+    public SourceDIDIndex withBlacklist(long billingNumber, ImmutableSet<Integer> carriers) {
+        return with(Collections.emptyMap(), Collections.singletonMap(billingNumber, carriers));
+    }
+
+    /**
+     * Copy of this index with the overrides and blacklists for every billing
+     * number in the maps replaced, built once however many numbers changed -
+     * a change sync pass after a bulk import applies them all through here.
+     */
+    public SourceDIDIndex with(Map<Long, RouteSet> changedOverrides, Map<Long, ImmutableSet<Integer>> changedBlacklists) {
+        if (changedOverrides.isEmpty() && changedBlacklists.isEmpty()) {
+            return this;
+        }
+        Map<Long, Entry> entries = entries();
+        for (Map.Entry<Long, RouteSet> change : changedOverrides.entrySet()) {
+            entries.computeIfAbsent(change.getKey(), k -> new Entry()).overrides = change.getValue();
+        }
+        for (Map.Entry<Long, ImmutableSet<Integer>> change : changedBlacklists.entrySet()) {
+            entries.computeIfAbsent(change.getKey(), k -> new Entry()).blacklist = change.getValue();
+        }
+        return new SourceDIDIndex(prune(entries));
+    }
+
+    private int find(long billingNumber) {
+        long hash = mix(billingNumber);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int k = 0; k < HASHES; k++) {
+            int bit = (h1 + k * h2) & bloomMask;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return -1;
+            }
+        }
+        return Arrays.binarySearch(billingNumbers, billingNumber);
+    }
+
+    private Map<Long, Entry> entries() {
+        Map<Long, Entry> entries = new TreeMap<>();
+        for (int i = 0; i < billingNumbers.length; i++) {
+            Entry entry = new Entry();
+            entry.overrides = overrides[i];
+            entry.blacklist = blacklists[i];
+            entries.put(billingNumbers[i], entry);
+        }
+        return entries;
+    }
+
+    private static Map<Long, Entry> prune(Map<Long, Entry> entries) {
+        entries.values().removeIf(entry -> entry.overrides.isEmpty() && entry.blacklist.isEmpty());
+        return entries;
+    }
+
+    /* Murmur3 finalizer - billing numbers are sequential-ish so they need a proper mix */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Billing numbers are stored as text - only ones that round trip exactly
+     * through a long can be indexed (anything else could never have matched
+     * String.valueOf(nationalNumber) anyway). Returns -1 for the rest.
+     */
+    public static long parseBillingNumber(String billingNumber) {
+        if (!RouteTable.isDigits(billingNumber) || billingNumber.length() > 18 || (billingNumber.length() > 1 && billingNumber.charAt(0) == '0')) {
+            return -1;
+        }
+        return Long.parseLong(billingNumber);
+    }
+
+    /**
+     * Collects rows while loading, then builds the index.
+     */
+    public static final class Builder {
+
+        private final Map<Long, Entry> entries = new TreeMap<>();
+        private final Map<Long, ArrayList<Route>> overrideRows = new TreeMap<>();
+        private final Map<Long, ImmutableSet.Builder<Integer>> blacklistRows = new TreeMap<>();
+
+        /* Overrides must be added in priority order */
+        public Builder addOverride(long billingNumber, Route route) {
+            overrideRows.computeIfAbsent(billingNumber, k -> new ArrayList<>()).add(route);
+            return this;
+        }
+
+        public Builder addBlacklist(long billingNumber, int carrierID) {
+            blacklistRows.computeIfAbsent(billingNumber, k -> ImmutableSet.builder()).add(carrierID);
+            return this;
+        }
+
+        public SourceDIDIndex build() {
+            for (Map.Entry<Long, ArrayList<Route>> row : overrideRows.entrySet()) {
+                entries.computeIfAbsent(row.getKey(), k -> new Entry()).overrides = RouteSet.of(row.getValue());
+            }
+            for (Map.Entry<Long, ImmutableSet.Builder<Integer>> row : blacklistRows.entrySet()) {
+                entries.computeIfAbsent(row.getKey(), k -> new Entry()).blacklist = row.getValue().build();
+            }
+            return new SourceDIDIndex(entries);
+        }
+    }
+
+    private static final class Entry {
+
+        RouteSet overrides = RouteSet.EMPTY;
+        ImmutableSet<Integer> blacklist = ImmutableSet.of();
+    }
+}
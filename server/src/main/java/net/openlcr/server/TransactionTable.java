@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.SipResponse;
+import io.sipstack.netty.codec.sip.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of a SIP server transaction layer to soak up UDP INVITE
+ * retransmissions. The first INVITE for a Via branch is routed as normal; a
+ * retransmit of it gets whatever we last sent for that transaction replayed
+ * (the 302, or the 100 Trying while the lookup is still running) or is dropped
+ * if we haven't sent anything yet - it never triggers a second lookup.
+ *
+ * Entries are removed by a timer wheel once the transaction can no longer be
+ * retransmitted (Timer H, 64*T1 = 32s by default), and the table stops
+ * tracking new transactions past maxTransactions rather than grow without
+ * limit.
+ *
+ * Only RFC 3261 branches (z9hG4bK...) are tracked - anything older is just
+ * routed every time like before.
+ *
+ * @author mgamble
+ */
+public final class TransactionTable {
+
+    private static final String MAGIC_COOKIE = "z9hG4bK";
+
+    private final ConcurrentHashMap<String, Transaction> transactions = new ConcurrentHashMap<>();
+    private final Timer timer;
+    private final long timeoutMillis;
+    private final int maxTransactions;
+    private final AtomicLong absorbed = new AtomicLong();
+
+    /* A table that tracks nothing - every message is treated as new */
+    public TransactionTable() {
+        this.timer = null;
+        this.timeoutMillis = 0;
+        this.maxTransactions = 0;
+    }
+
+    public TransactionTable(int timeoutSeconds, int maxTransactions) {
+        this.timer = new HashedWheelTimer(r -> {
+            Thread t = new Thread(r, "openlcr-transactions");
+            t.setDaemon(true);
+            return t;
+        }, 100, TimeUnit.MILLISECONDS, 512);
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        this.maxTransactions = maxTransactions;
+    }
+
+    /**
+     * Called for every incoming INVITE. Returns true if it's the start of a new
+     * transaction and should be routed - false if it was a retransmission, in
+     * which case the last response (if any) has already been resent.
+     */
+    public boolean begin(SipMessage msg, Connection connection) {
+        String key = key(msg);
+        if (key == null) {
+            return true;
+        }
+        Transaction existing = transactions.get(key);
+        if (existing == null) {
+            if (transactions.size() >= maxTransactions) {
+                return true;
+            }
+            Transaction transaction = new Transaction();
+            existing = transactions.putIfAbsent(key, transaction);
+            if (existing == null) {
+                timer.newTimeout(timeout -> transactions.remove(key, transaction), timeoutMillis, TimeUnit.MILLISECONDS);
+                return true;
+            }
+        }
+        absorbed.incrementAndGet();
+        SipResponse lastResponse = existing.lastResponse;
+        if (lastResponse != null) {
+            connection.send(lastResponse);
+        }
+        return false;
+    }
+
+    /* Remember a response we've sent so retransmits of the request get it again */
+    public void sent(SipMessage msg, SipResponse response) {
+        String key = key(msg);
+        if (key == null) {
+            return;
+        }
+        Transaction transaction = transactions.get(key);
+        if (transaction != null) {
+            transaction.lastResponse = response;
+        }
+    }
+
+    /* Forget a transaction we never answered, so a retransmit is routed afresh */
+    public void abandon(SipMessage msg) {
+        String key = key(msg);
+        if (key != null) {
+            transactions.remove(key);
+        }
+    }
+
+    public int size() {
+        return transactions.size();
+    }
+
+    /* Retransmissions answered from the table instead of being routed again */
+    public long getAbsorbed() {
+        return absorbed.get();
+    }
+
+    private String key(SipMessage msg) {
+        if (timer == null || !msg.isInvite()) {
+            return null;
+        }
+        Buffer branch = msg.getViaHeader().getBranch();
+        if (branch == null) {
+            return null;
+        }
+        String key = branch.toString();
+        return key.startsWith(MAGIC_COOKIE) ? key : null;
+    }
+
+    private static final class Transaction {
+
+        volatile SipResponse lastResponse;
+    }
+}
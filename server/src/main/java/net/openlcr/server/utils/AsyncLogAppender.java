@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Hands log events to a writer thread through a bounded queue, so the
+ * threads routing calls never wait on the disk. If the queue is full the
+ * event is dropped and counted - losing a log line beats stalling a call - and
+ * the writer notes how many were lost once it catches up.
+ *
+ * Unlike log4j's own AsyncAppender this never waits for room in the buffer.
+ * It isn't lock free: ArrayBlockingQueue.offer takes the queue's lock, and
+ * log4j synchronizes on the logger in callAppenders before we're called at
+ * all. Both are held for a few stores, never across I/O.
+ *
+ * @author mgamble
+ */
+public final class AsyncLogAppender implements Appender, Runnable {
+
+    private final Appender target;
+    private final ArrayBlockingQueue<LoggingEvent> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private long droppedReported = 0;
+    private String name;
+    private ErrorHandler errorHandler;
+
+    public AsyncLogAppender(Appender target, int bufferSize) {
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.writer = new Thread(this, "openlcr-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void doAppend(LoggingEvent event) {
+        if (closed) {
+            return;
+        }
+        /* Pin down the bits that depend on the calling thread before it changes hands */
+        event.getThreadName();
+        event.getNDC();
+        event.getMDCCopy();
+        if (!buffer.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed || !buffer.isEmpty()) {
+            try {
+                LoggingEvent event = buffer.poll(1, TimeUnit.SECONDS);
+                if (event != null) {
+                    target.doAppend(event);
+                }
+                if (buffer.isEmpty()) {
+                    reportDropped();
+                }
+            } catch (InterruptedException ex) {
+                /* close() wakes us up - loop round to drain what's left */
+            } catch (RuntimeException ex) {
+                /* Never let a bad event kill the writer */
+            }
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.get();
+        if (total != droppedReported) {
+            target.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger(AsyncLogAppender.class), Level.WARN,
+                    "Log buffer full - dropped " + (total - droppedReported) + " messages (" + total + " in total)", null));
+            droppedReported = total;
+        }
+    }
+
+    /* Events thrown away because the buffer was full */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    /* Write out whatever is buffered, then close the underlying appender */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    @Override
+    public void addFilter(Filter newFilter) {
+        target.addFilter(newFilter);
+    }
+
+    @Override
+    public Filter getFilter() {
+        return target.getFilter();
+    }
+
+    @Override
+    public void clearFilters() {
+        target.clearFilters();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    @Override
+    public void setLayout(Layout layout) {
+        target.setLayout(layout);
+    }
+
+    @Override
+    public Layout getLayout() {
+        return target.getLayout();
+    }
+
+    @Override
+    public boolean requiresLayout() {
+        return false;
+    }
+}
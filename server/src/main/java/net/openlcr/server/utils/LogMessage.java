@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server.utils;
+
+/**
+ * A log message with "{}" placeholders that isn't put together until
+ * something calls toString() - log4j does that when the event is written, which
+ * with AsyncLogAppender is on the writer thread rather than the call path.
+ *
+ * Arguments should be immutable (strings, numbers) since they're read later.
+ *
+ * @author mgamble
+ */
+public final class LogMessage {
+
+    private final String pattern;
+    private final Object[] args;
+
+    public LogMessage(String pattern, Object... args) {
+        this.pattern = pattern;
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder message = new StringBuilder(pattern.length() + 16 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            message.append(pattern, from, at).append(arg);
+            from = at + 2;
+        }
+        return message.append(pattern, from, pattern.length()).toString();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server.utils;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stands in for the libphonenumber calls on the call path. Nearly everything
+ * we see is a NANP number written as +1NPANXXXXXX, 1NPANXXXXXX or NPANXXXXXX,
+ * and for those the answer can be worked out directly from the digits - no
+ * regex matching, metadata walks or intermediate strings. Anything else goes
+ * to libphonenumber exactly as before.
+ *
+ * Run main() to check the fast path gives the same answers as libphonenumber
+ * for a list of numbers (or a random sample) and to time both.
+ *
+ * @author mgamble
+ */
+public final class NumberNormalizer {
+
+    private NumberNormalizer() {
+        // Singleton
+    }
+
+    private static final int NANPA_COUNTRY_CODE = 1;
+
+    private static final PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
+
+    private static final ConcurrentHashMap<String, Boolean> nanpRegions = new ConcurrentHashMap<>();
+
+    /*
+     * isValidNumber answers by NPA-NXX - NANP metadata never looks further than
+     * the first six digits - indexed by nationalNumber / 10000.
+     * 0 = not asked yet, 1 = valid, 2 = not valid
+     */
+    private static final byte[] nanpValidity = new byte[1000000];
+
+    /**
+     * Same result as PhoneNumberUtil.parse(number, defaultRegion).
+     */
+    public static PhoneNumber parse(String number, String defaultRegion) throws NumberParseException {
+        long nationalNumber = parseNanp(number, defaultRegion);
+        if (nationalNumber < 0) {
+            return phoneUtil.parse(number, defaultRegion);
+        }
+        return new PhoneNumber().setCountryCode(NANPA_COUNTRY_CODE).setNationalNumber(nationalNumber);
+    }
+
+    /**
+     * Same result as PhoneNumberUtil.isValidNumber(number).
+     */
+    public static boolean isValidNumber(PhoneNumber number) {
+        if (!isPlainNanp(number)) {
+            return phoneUtil.isValidNumber(number);
+        }
+        int npaNxx = (int) (number.getNationalNumber() / 10000);
+        byte valid = nanpValidity[npaNxx];
+        if (valid == 0) {
+            valid = phoneUtil.isValidNumber(number) ? (byte) 1 : (byte) 2;
+            nanpValidity[npaNxx] = valid;
+        }
+        return valid == 1;
+    }
+
+    /**
+     * Same result as PhoneNumberUtil.formatOutOfCountryCallingNumber with the
+     * spaces and dashes taken out - and the brackets too if stripBrackets is
+     * set. A NANP number called from a NANP region comes out as 1NPANXXXXXX
+     * (or 1(NPA)NXXXXXX).
+     */
+    public static String formatDialable(PhoneNumber number, String regionCallingFrom, boolean stripBrackets) {
+        if (!isPlainNanp(number) || !isNanpRegion(regionCallingFrom)) {
+            String formattedNumber = phoneUtil.formatOutOfCountryCallingNumber(number, regionCallingFrom);
+            formattedNumber = formattedNumber.replace(" ", "");
+            formattedNumber = formattedNumber.replace("-", "");
+            if (stripBrackets) {
+                formattedNumber = formattedNumber.replace(")", "");
+                formattedNumber = formattedNumber.replace("(", "");
+            }
+            return formattedNumber;
+        }
+        long nationalNumber = number.getNationalNumber();
+        char[] digits = new char[stripBrackets ? 11 : 13];
+        int pos = digits.length;
+        for (int i = 0; i < 10; i++) {
+            digits[--pos] = (char) ('0' + nationalNumber % 10);
+            nationalNumber /= 10;
+            if (!stripBrackets && i == 6) {
+                digits[--pos] = ')';
+            }
+        }
+        if (!stripBrackets) {
+            digits[--pos] = '(';
+        }
+        digits[--pos] = '1';
+        return new String(digits);
+    }
+
+    /**
+     * National number for the NANP shapes we handle directly, or -1 if the
+     * number has to go through libphonenumber.
+     */
+    static long parseNanp(String number, String defaultRegion) {
+        int length = number.length();
+        int start = 0;
+        if (length == 12 && number.charAt(0) == '+') {
+            if (number.charAt(1) != '1') {
+                return -1;
+            }
+            start = 2;
+        } else if (length == 11) {
+            /* 1NPANXXXXXX - libphonenumber treats the 1 as the country code only when the default region is in the NANP */
+            if (number.charAt(0) != '1' || !isNanpRegion(defaultRegion)) {
+                return -1;
+            }
+            start = 1;
+        } else if (length != 10 || !isNanpRegion(defaultRegion)) {
+            return -1;
+        }
+        long nationalNumber = 0;
+        for (int i = start; i < length; i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            nationalNumber = nationalNumber * 10 + (c - '0');
+        }
+        /* NPA and NXX both start 2-9 */
+        if (number.charAt(start) < '2' || number.charAt(start + 3) < '2') {
+            return -1;
+        }
+        return nationalNumber;
+    }
+
+    /* A +1 NPA-NXX-XXXX with nothing else set - the only shape the fast paths answer for */
+    private static boolean isPlainNanp(PhoneNumber number) {
+        if (number.getCountryCode() != NANPA_COUNTRY_CODE || number.hasExtension() || number.isItalianLeadingZero()) {
+            return false;
+        }
+        long nationalNumber = number.getNationalNumber();
+        return nationalNumber >= 2000000000L && nationalNumber <= 9999999999L && (nationalNumber / 1000000) % 10 >= 2;
+    }
+
+    private static boolean isNanpRegion(String region) {
+        if (region == null) {
+            return false;
+        }
+        Boolean nanp = nanpRegions.get(region);
+        if (nanp == null) {
+            nanp = phoneUtil.getCountryCodeForRegion(region) == NANPA_COUNTRY_CODE;
+            nanpRegions.put(region, nanp);
+        }
+        return nanp;
+    }
+
+    /**
+     * Compare against libphonenumber and time both.
+     *
+     * Usage: NumberNormalizer [region] [file of numbers, one per line]
+     *
+     * With no file a random mix of NANP and international numbers is used.
+     */
+    public static void main(String[] args) throws IOException {
+        String region = args.length > 0 ? args[0] : "CA";
+        List<String> numbers;
+        if (args.length > 1) {
+            numbers = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    numbers.add(line.trim());
+                }
+            }
+        } else {
+            numbers = sampleNumbers(100000);
+        }
+
+        int mismatches = 0;
+        for (String number : numbers) {
+            String expected = describe(number, region, false);
+            String actual = describe(number, region, true);
+            if (!expected.equals(actual)) {
+                mismatches++;
+                if (mismatches <= 20) {
+                    System.out.println("MISMATCH " + number + "\n  libphonenumber: " + expected + "\n  normalizer:     " + actual);
+                }
+            }
+        }
+        System.out.println("Compared " + numbers.size() + " numbers for region " + region + " - " + mismatches + " mismatches");
+
+        for (int round = 0; round < 5; round++) {
+            long libphonenumberNanos = time(numbers, region, false);
+            long normalizerNanos = time(numbers, region, true);
+            System.out.println("Round " + round + ": libphonenumber " + (libphonenumberNanos / numbers.size()) + "ns/number, normalizer " + (normalizerNanos / numbers.size()) + "ns/number");
+        }
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /* parse, isValidNumber and both dialable formats as one string, or the parse error */
+    private static String describe(String number, String region, boolean fast) {
+        try {
+            PhoneNumber parsed = fast ? parse(number, region) : phoneUtil.parse(number, region);
+            boolean valid = fast ? isValidNumber(parsed) : phoneUtil.isValidNumber(parsed);
+            String dialable;
+            String dialableWithBrackets;
+            if (fast) {
+                dialable = formatDialable(parsed, region, true);
+                dialableWithBrackets = formatDialable(parsed, region, false);
+            } else {
+                dialableWithBrackets = phoneUtil.formatOutOfCountryCallingNumber(parsed, region).replace(" ", "").replace("-", "");
+                dialable = dialableWithBrackets.replace(")", "").replace("(", "");
+            }
+            return parsed.getCountryCode() + "/" + parsed.getNationalNumber() + " valid=" + valid + " " + dialable + " " + dialableWithBrackets;
+        } catch (NumberParseException ex) {
+            return "error " + ex.getErrorType();
+        }
+    }
+
+    private static long time(List<String> numbers, String region, boolean fast) {
+        long start = System.nanoTime();
+        long sink = 0;
+        for (String number : numbers) {
+            try {
+                PhoneNumber parsed = fast ? parse(number, region) : phoneUtil.parse(number, region);
+                String dialable = fast ? formatDialable(parsed, region, true)
+                        : phoneUtil.formatOutOfCountryCallingNumber(parsed, region).replace(" ", "").replace("-", "").replace(")", "").replace("(", "");
+                sink += parsed.getNationalNumber() + dialable.length();
+            } catch (NumberParseException ex) {
+                sink++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+
+    private static List<String> sampleNumbers(int count) {
+        Random random = new Random(20230101L);
+        List<String> numbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long nationalNumber = 1000000000L + (long) (random.nextDouble() * 9000000000L);
+            switch (random.nextInt(8)) {
+                case 0:
+                    numbers.add("+1" + nationalNumber);
+                    break;
+                case 1:
+                    numbers.add("1" + nationalNumber);
+                    break;
+                case 2:
+                    numbers.add(String.valueOf(nationalNumber));
+                    break;
+                case 3:
+                    numbers.add("+44" + nationalNumber);
+                    break;
+                case 4:
+                    numbers.add("011" + (30 + random.nextInt(60)) + nationalNumber);
+                    break;
+                case 5:
+                    numbers.add(String.valueOf(nationalNumber / 1000));
+                    break;
+                case 6:
+                    numbers.add("+1" + nationalNumber / 10);
+                    break;
+                default:
+                    numbers.add("+1" + (2000000000L + nationalNumber % 8000000000L));
+                    break;
+            }
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import com.zaxxer.hikari.HikariDataSource;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * ApiSubscription against MockApiServer on an ephemeral port, with an empty
+ * database behind LCRServer.
+ *
+ * @author mgamble
+ */
+public class ApiSubscriptionTest {
+
+    private HikariDataSource database;
+    private MockApiServer api;
+    private ApiSubscription subscription;
+    private final AtomicInteger resyncs = new AtomicInteger();
+
+    @BeforeEach
+    public void connect() throws Exception {
+        database = LCRServer.ds;
+        LCRServer.ds = TestFixtures.emptyDatabase();
+        api = new MockApiServer(new InetSocketAddress("127.0.0.1", 0), "/api/changes", "secret");
+        String json = "{\"apiUrl\": \"ws://127.0.0.1:" + api.getPort() + "/api/changes\", \"apiToken\": \"secret\", \"apiReconnectMinSeconds\": 1, \"apiReconnectMaxSeconds\": 2}";
+        subscription = new ApiSubscription(new Gson().fromJson(json, ServerConfiguration.class), resyncs::incrementAndGet, LCRServer.logger);
+        subscription.start();
+        await("connected", () -> subscription.isConnected() && api.getClientCount() == 1);
+    }
+
+    @AfterEach
+    public void disconnect() throws Exception {
+        subscription.stop();
+        api.close();
+        LCRServer.ds = database;
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting until " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void appliesEvents() throws Exception {
+        api.broadcast("{\"type\": \"route\", \"prefix\": \"1416\"}");
+        api.broadcast("[{\"type\": \"override\", \"billingNumber\": \"4165550100\"}, {\"type\": \"resync\"}]");
+        await("three events applied", () -> subscription.getEventsApplied() == 3);
+        assertEquals(0, subscription.getEventsRejected());
+        assertEquals(1, resyncs.get());
+    }
+
+    @Test
+    public void rejectsUnknownAndMalformedEvents() throws Exception {
+        api.broadcast("{\"type\": \"rate\", \"id\": 7}");
+        api.broadcast("{\"type\": \"override\"}");
+        api.broadcast("{\"type\": \"route\", \"prefix\": \"14a\"}");
+        api.broadcast("{\"type\": ");
+        api.broadcast("42");
+        await("five events rejected", () -> subscription.getEventsRejected() == 5);
+        assertEquals(0, subscription.getEventsApplied());
+
+        /* Still connected, and still applying */
+        api.broadcast("{\"type\": \"resync\"}");
+        await("the resync applied", () -> subscription.getEventsApplied() == 1);
+        assertTrue(subscription.isConnected());
+    }
+
+    @Test
+    public void reconnectsAndResyncsAfterADrop() throws Exception {
+        assertEquals(0, resyncs.get());
+        api.dropAll();
+        await("reconnected", () -> subscription.getReconnects() == 1 && subscription.isConnected() && api.getClientCount() == 1);
+        await("resynced", () -> resyncs.get() == 1);
+
+        /* Events on the new connection are applied */
+        api.broadcast("{\"type\": \"route\", \"prefix\": \"1416\"}");
+        await("the route event applied", () -> subscription.getEventsApplied() == 1);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Timestamp;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class ChangeSyncTest {
+
+    private static final Timestamp T = Timestamp.valueOf("2023-06-01 12:00:00");
+    private static final Timestamp T_PLUS_1 = Timestamp.valueOf("2023-06-01 12:00:01");
+
+    @Test
+    public void aSecondEditInTheSameSecondIsApplied() {
+        ChangeSync.Watermark watermark = new ChangeSync.Watermark("routes");
+
+        /* Poll at T applies route 42 */
+        ChangeSync.Changes changes = watermark.begin();
+        assertTrue(changes.accept(T));
+        changes.commit();
+        assertEquals(T, watermark.position);
+        assertTrue(watermark.advanced);
+
+        /* Route 42 is edited again within T - updated_at doesn't move, the row still has to be applied */
+        changes = watermark.begin();
+        assertTrue(changes.accept(T));
+        changes.commit();
+        assertEquals(T, watermark.position);
+        assertFalse(watermark.advanced);
+
+        changes = watermark.begin();
+        assertTrue(changes.accept(T));
+        assertTrue(changes.accept(T_PLUS_1));
+        assertFalse(changes.accept(null));
+        changes.commit();
+        assertEquals(T_PLUS_1, watermark.position);
+        assertTrue(watermark.advanced);
+    }
+
+    @Test
+    public void anUncommittedPassLeavesTheWatermark() {
+        ChangeSync.Watermark watermark = new ChangeSync.Watermark("routes");
+        ChangeSync.Changes changes = watermark.begin();
+        assertTrue(changes.accept(T));
+        assertEquals(new Timestamp(0), watermark.position);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static net.openlcr.server.TestFixtures.carrier;
+import static net.openlcr.server.TestFixtures.plan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.openlcr.common.classes.Carrier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class ContactTemplateTest {
+
+    @AfterEach
+    public void reset() {
+        TestFixtures.reset();
+    }
+
+    @Test
+    public void offersEachCarrierOnceUntilQRunsOut() throws Exception {
+        LCRServer.carrierCache.put("9101", carrier(9101, "A1", "A2"));
+        LCRServer.carrierCache.put("9102", carrier(9102, "B1", "B2", "B3"));
+        LCRServer.carrierCache.put("9103", carrier(9103, "C1"));
+
+        ContactTemplate template = ContactTemplate.forPlan(plan(9101, 9101, 9102, 9103), 0.6);
+        assertEquals(5, template.getEntries().length);
+        assertEquals("1.0", template.getEntries()[0].getQ());
+        assertEquals("B3", template.getEntries()[4].getTrunk().getTrunkGroupID());
+        assertTrue(template.isTruncated());
+        assertEquals("<sip:1@x;dtg=A1>;q=1.0,<sip:1@x;dtg=A2>;q=0.9", ContactTemplate.forPlan(plan(9101), 0.6).renderMetaswitchContact("sip:1@x"));
+        assertSame(template, ContactTemplate.forPlan(plan(9101, 9102, 9103), 0.6));
+    }
+
+    @Test
+    public void onlyTemplatesOfferingAChangedCarrierAreDropped() throws Exception {
+        LCRServer.carrierCache.put("9201", carrier(9201, "A1"));
+        LCRServer.carrierCache.put("9202", carrier(9202, "B1"));
+        ContactTemplate first = ContactTemplate.forPlan(plan(9201), 0.6);
+        ContactTemplate second = ContactTemplate.forPlan(plan(9202), 0.6);
+
+        /* A bulk reload puts an equal carrier back - nothing changes */
+        Carrier old = LCRServer.carrierCache.getIfPresent("9201");
+        LCRServer.carrierCache.put("9201", carrier(9201, "A1"));
+        ContactTemplate.carrierRemoved("9201", old);
+        assertSame(first, ContactTemplate.forPlan(plan(9201), 0.6));
+
+        old = LCRServer.carrierCache.getIfPresent("9201");
+        LCRServer.carrierCache.put("9201", carrier(9201, "A9"));
+        ContactTemplate.carrierRemoved("9201", old);
+        ContactTemplate rebuilt = ContactTemplate.forPlan(plan(9201), 0.6);
+        assertNotSame(first, rebuilt);
+        assertEquals("A9", rebuilt.getEntries()[0].getTrunk().getTrunkGroupID());
+        assertSame(second, ContactTemplate.forPlan(plan(9202), 0.6));
+    }
+
+    @Test
+    public void sameContactsComparesTrunks() {
+        assertTrue(ContactTemplate.sameContacts(carrier(1, "A", "B"), carrier(1, "A", "B")));
+        assertFalse(ContactTemplate.sameContacts(carrier(1, "A", "B"), carrier(1, "B", "A")));
+        assertFalse(ContactTemplate.sameContacts(carrier(1, "A"), carrier(1, "A", "B")));
+        assertFalse(ContactTemplate.sameContacts(carrier(1, "A"), carrier(2, "A")));
+        assertFalse(ContactTemplate.sameContacts(carrier(1, "A"), null));
+    }
+}
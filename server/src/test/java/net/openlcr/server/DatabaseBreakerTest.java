@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.gson.Gson;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class DatabaseBreakerTest {
+
+    private boolean checkoutsFail;
+    private boolean queriesFail;
+
+    private static DatabaseBreaker breaker(int openSeconds) {
+        String json = "{\"dbBreakerWindowSize\": 4, \"dbBreakerMinimumCalls\": 4, \"dbBreakerFailureRatePercent\": 50, \"dbBreakerOpenSeconds\": " + openSeconds + "}";
+        return new DatabaseBreaker(new Gson().fromJson(json, ServerConfiguration.class), Logger.getLogger(DatabaseBreakerTest.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(DatabaseBreakerTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /* Connections whose statements fail with a timeout while queriesFail is set */
+    private final DataSource dataSource = proxy(DataSource.class, (proxy, method, args) -> {
+        if (!method.getName().equals("getConnection")) {
+            return null;
+        }
+        if (checkoutsFail) {
+            throw new SQLTransientConnectionException("pool timed out");
+        }
+        return proxy(Connection.class, (connection, connectionMethod, connectionArgs) -> {
+            if (!connectionMethod.getName().equals("prepareStatement")) {
+                return null;
+            }
+            return proxy(PreparedStatement.class, (statement, statementMethod, statementArgs) -> {
+                if (statementMethod.getName().equals("executeQuery") && queriesFail) {
+                    throw new SQLTimeoutException("query timed out");
+                }
+                return statementMethod.getReturnType() == boolean.class ? false : statementMethod.getReturnType() == int.class ? 0 : null;
+            });
+        });
+    });
+
+    private void query(DatabaseBreaker breaker) throws SQLException {
+        try (Connection connection = breaker.getConnection(dataSource);
+                PreparedStatement pstmt = connection.prepareStatement("select 1")) {
+            pstmt.executeQuery();
+        }
+    }
+
+    @Test
+    public void failedQueriesOpenTheBreaker() throws Exception {
+        DatabaseBreaker breaker = breaker(60);
+        query(breaker);
+        query(breaker);
+        queriesFail = true;
+        assertThrows(SQLTimeoutException.class, () -> query(breaker));
+        assertEquals(DatabaseBreaker.State.CLOSED, breaker.getState());
+        assertThrows(SQLTimeoutException.class, () -> query(breaker));
+        assertEquals(DatabaseBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpened());
+
+        queriesFail = false;
+        assertThrows(SQLTransientConnectionException.class, () -> query(breaker));
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void failedCheckoutsCountToo() throws Exception {
+        DatabaseBreaker breaker = breaker(60);
+        query(breaker);
+        query(breaker);
+        checkoutsFail = true;
+        assertThrows(SQLException.class, () -> query(breaker));
+        assertThrows(SQLException.class, () -> query(breaker));
+        assertEquals(DatabaseBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenProbeIsDecidedByItsFirstQuery() throws Exception {
+        DatabaseBreaker breaker = breaker(0);
+        queriesFail = true;
+        for (int i = 0; i < 4; i++) {
+            assertThrows(SQLTimeoutException.class, () -> query(breaker));
+        }
+        assertEquals(DatabaseBreaker.State.OPEN, breaker.getState());
+
+        /* The probe's checkout succeeds but its query doesn't - back to open */
+        assertThrows(SQLTimeoutException.class, () -> query(breaker));
+        assertEquals(DatabaseBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+
+        queriesFail = false;
+        try (Connection probe = breaker.getConnection(dataSource)) {
+            assertEquals(DatabaseBreaker.State.HALF_OPEN, breaker.getState());
+            assertThrows(SQLTransientConnectionException.class, () -> breaker.getConnection(dataSource));
+            probe.prepareStatement("select 1").executeQuery();
+            assertEquals(DatabaseBreaker.State.CLOSED, breaker.getState());
+        }
+    }
+
+    @Test
+    public void aConnectionClosedUnusedCountsAsItsCheckout() throws Exception {
+        DatabaseBreaker breaker = breaker(0);
+        checkoutsFail = true;
+        for (int i = 0; i < 4; i++) {
+            assertThrows(SQLException.class, () -> query(breaker));
+        }
+        checkoutsFail = false;
+        Connection probe = breaker.getConnection(dataSource);
+        assertEquals(DatabaseBreaker.State.HALF_OPEN, breaker.getState());
+        probe.close();
+        assertEquals(DatabaseBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * A stand-in for the API server's change event WebSocket, for trying out
+ * ApiSubscription without the real thing. Every line typed (or piped) on
+ * stdin goes out as a text message to every connected server:
+ *
+ *   {"type": "route", "prefix": "1416"}
+ *   {"type": "carrier", "id": 12}
+ *
+ * "drop" closes every connection (to watch the servers back off and
+ * reconnect), "quit" exits. Point apiUrl at it:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar net.openlcr.server.MockApiServer --port 8080
+ *
+ * Just enough RFC 6455 for that (and for ApiSubscriptionTest) - text frames
+ * out, pings answered, no fragmentation or extensions. It lives with the
+ * tests; the benchmarks jar carries it from the server's test-jar.
+ *
+ * @author mgamble
+ */
+public final class MockApiServer {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocket serverSocket;
+    private final String path;
+    private final String token;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+    public MockApiServer(InetSocketAddress address, String path, String token) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(address);
+        this.path = path;
+        this.token = token;
+        Thread acceptor = new Thread(this::accept, "mock-api-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /* Send one text message to every connected client */
+    public void broadcast(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        for (Client client : clients) {
+            client.send(0x1, payload);
+        }
+    }
+
+    /* Close every connection, as an API server restart would */
+    public void dropAll() {
+        for (Client client : clients) {
+            client.send(0x8, new byte[]{0x03, (byte) 0xe9});
+            client.close();
+        }
+    }
+
+    public void close() throws IOException {
+        dropAll();
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> serve(socket), "mock-api-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + ex);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Client client = null;
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine = readLine(in);
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            String key = headers.get("sec-websocket-key");
+            if (requestLine == null || key == null || (!requestLine.startsWith("GET " + path + " ") && !requestLine.startsWith("GET " + path + "?"))) {
+                reply(out, "404 Not Found");
+                socket.close();
+                return;
+            }
+            if (!token.isEmpty() && !("Bearer " + token).equals(headers.get("authorization"))) {
+                reply(out, "401 Unauthorized");
+                socket.close();
+                return;
+            }
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            client = new Client(socket, out);
+            clients.add(client);
+            System.out.println("Connected: " + socket.getRemoteSocketAddress() + " (" + clients.size() + " connected)");
+            while (true) {
+                int first = in.readUnsignedByte();
+                int second = in.readUnsignedByte();
+                long length = second & 0x7f;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] mask = new byte[4];
+                if ((second & 0x80) != 0) {
+                    in.readFully(mask);
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+                int opcode = first & 0x0f;
+                if (opcode == 0x8) {
+                    client.send(0x8, payload);
+                    break;
+                } else if (opcode == 0x9) {
+                    client.send(0xA, payload);
+                } else if (opcode == 0x1) {
+                    System.out.println("From " + socket.getRemoteSocketAddress() + ": " + new String(payload, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException ex) {
+            /* Connection gone */
+        } finally {
+            if (client != null) {
+                clients.remove(client);
+                client.close();
+                System.out.println("Disconnected: " + socket.getRemoteSocketAddress() + " (" + clients.size() + " connected)");
+            }
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void reply(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final class Client {
+
+        private final Socket socket;
+        private final OutputStream out;
+
+        Client(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        /* Server frames go out unmasked, in one piece */
+        synchronized void send(int opcode, byte[] payload) {
+            try {
+                out.write(0x80 | opcode);
+                if (payload.length < 126) {
+                    out.write(payload.length);
+                } else if (payload.length < 65536) {
+                    out.write(126);
+                    out.write(payload.length >>> 8);
+                    out.write(payload.length);
+                } else {
+                    out.write(127);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) ((long) payload.length >>> shift));
+                    }
+                }
+                out.write(payload);
+                out.flush();
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                /* Already closed */
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("address").withRequiredArg().defaultsTo("127.0.0.1");
+        parser.accepts("port").withRequiredArg().defaultsTo("8080");
+        parser.accepts("path").withRequiredArg().defaultsTo("/api/changes");
+        parser.accepts("token").withRequiredArg().defaultsTo("");
+        OptionSet options = parser.parse(args);
+
+        MockApiServer server = new MockApiServer(new InetSocketAddress(options.valueOf("address").toString(), Integer.parseInt(options.valueOf("port").toString())),
+                options.valueOf("path").toString(), options.valueOf("token").toString());
+        System.out.println("Mock API server on ws://" + options.valueOf("address") + ":" + server.getPort() + options.valueOf("path") + " - one event per line, \"drop\" to disconnect everyone, \"quit\" to exit");
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = stdin.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.equals("quit")) {
+                break;
+            }
+            if (line.equals("drop")) {
+                server.dropAll();
+                continue;
+            }
+            server.broadcast(line);
+            System.out.println("Sent to " + server.getClientCount() + ": " + line);
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.RouteModification;
+import net.openlcr.common.classes.TrunkGroup;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author mgamble
+ */
+public class RouteSnapshotTest {
+
+    @TempDir
+    File directory;
+
+    private static Route route(int routeID, String digits, int carrierID) {
+        Route route = new Route();
+        route.setActive(true);
+        route.setRouteID(routeID);
+        route.setDigits(digits);
+        route.setCarrierID(carrierID);
+        route.setRouteModification(RouteModification.NONE);
+        return route;
+    }
+
+    private File write() throws IOException {
+        return write("Carrier \u00e9");
+    }
+
+    private File write(String carrierName) throws IOException {
+        Carrier carrier = new Carrier();
+        carrier.setActive(true);
+        carrier.setCarrierID(12);
+        carrier.setCarrierName(carrierName);
+        carrier.setUseE164(true);
+        TrunkGroup trunk = new TrunkGroup();
+        trunk.setCarrerID(12);
+        trunk.setTrunkGroupID("TG12");
+        trunk.setIpAddress("192.0.2.12");
+        trunk.setPort(5060);
+        trunk.setPriority(5);
+        carrier.addTrunkGroup(trunk);
+        Map<Integer, Carrier> carriers = new HashMap<>();
+        carriers.put(12, carrier);
+
+        Route prepend = route(2, "1613", 12);
+        prepend.setRouteModification(RouteModification.PREPEND);
+        prepend.setModificationString("101");
+        prepend.setPrice(0.0125);
+        List<Route> routes = Arrays.asList(route(1, "1416", 12), prepend);
+
+        SourceDIDIndex index = new SourceDIDIndex.Builder()
+                .addOverride(4165550100L, route(3, "4165550100", 12))
+                .addBlacklist(6135550100L, 12)
+                .build();
+        File file = new File(directory, "routes.snapshot");
+        RouteSnapshot.write(file, routes, carriers, index);
+        return file;
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        RouteSnapshot snapshot = RouteSnapshot.read(write());
+
+        assertEquals(2, snapshot.getRoutes().size());
+        Route prepend = snapshot.getRoutes().get(1);
+        assertEquals(2, prepend.getRouteID());
+        assertEquals("1613", prepend.getDigits());
+        assertEquals(RouteModification.PREPEND, prepend.getRouteModification());
+        assertEquals("101", prepend.getModificationString());
+        assertEquals(0.0125, prepend.getPrice(), 0.0);
+
+        Carrier carrier = snapshot.getCarriers().get(12);
+        assertEquals("Carrier \u00e9", carrier.getCarrierName());
+        assertTrue(carrier.isUseE164());
+        assertEquals(1, carrier.getTrunkGroups().size());
+        assertEquals("TG12", carrier.getTrunkGroups().get(0).getTrunkGroupID());
+        assertEquals(5060, carrier.getTrunkGroups().get(0).getPort());
+
+        assertEquals(3, snapshot.getSourceDIDIndex().getOverrides(4165550100L).iterator().next().getRouteID());
+        assertEquals(ImmutableSet.of(12), snapshot.getSourceDIDIndex().getBlacklist(6135550100L));
+        assertEquals(2, snapshot.getSourceDIDIndex().size());
+    }
+
+    @Test
+    public void refusesATruncatedSnapshot() throws Exception {
+        File file = write();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertThrows(IOException.class, () -> RouteSnapshot.read(file));
+    }
+
+    @Test
+    public void refusesACorruptSnapshot() throws Exception {
+        File file = write();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(file.toPath(), bytes);
+        IOException ex = assertThrows(IOException.class, () -> RouteSnapshot.read(file));
+        assertEquals(file + " failed its checksum", ex.getMessage());
+    }
+
+    @Test
+    public void refusesAnotherFormat() throws Exception {
+        File file = write();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeInt(RouteSnapshot.VERSION + 1);
+        }
+        assertThrows(IOException.class, () -> RouteSnapshot.read(file));
+    }
+
+    @Test
+    public void refusesLeftoverBytes() throws Exception {
+        File file = write();
+        /* One billing number fewer than the payload holds - the checksum only covers the payload */
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(44);
+            raf.writeInt(1);
+        }
+        IOException ex = assertThrows(IOException.class, () -> RouteSnapshot.read(file));
+        assertTrue(ex.getMessage().contains("left over"), ex.getMessage());
+    }
+
+    @Test
+    public void refusesToWriteAStringTooLongForItsLength() throws Exception {
+        char[] name = new char[Short.MAX_VALUE + 1];
+        Arrays.fill(name, 'x');
+        assertThrows(IOException.class, () -> write(new String(name)));
+        assertEquals(0, directory.listFiles().length);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.openlcr.common.classes.Route;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class RouteTableTest {
+
+    private static Route route(int routeID, String digits, int carrierID, double price) {
+        Route route = new Route();
+        route.setActive(true);
+        route.setRouteID(routeID);
+        route.setDigits(digits);
+        route.setCarrierID(carrierID);
+        route.setPrice(price);
+        return route;
+    }
+
+    private static Set<Integer> routeIDs(RouteSet routes) {
+        Set<Integer> routeIDs = new HashSet<>();
+        for (Route route : routes) {
+            routeIDs.add(route.getRouteID());
+        }
+        return routeIDs;
+    }
+
+    private static RouteTable table() {
+        return RouteTable.build(Arrays.asList(
+                route(1, "1", 1, 0.01),
+                route(2, "14", 1, 0.02),
+                route(3, "1416", 2, 0.03),
+                route(4, "1416555", 3, 0.04),
+                route(5, "1905", 2, 0.05)));
+    }
+
+    @Test
+    public void lookupCollectsEveryRoutedPrefix() {
+        RouteTable table = table();
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), routeIDs(table.lookup("14165551234")));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), routeIDs(table.lookup("14169990000")));
+        assertEquals(7, table.matchedPrefixLength("14165551234"));
+    }
+
+    @Test
+    public void singleDigitPrefixesNeverMatch() {
+        RouteTable table = table();
+        assertEquals(4, table.getRouteCount());
+        assertTrue(table.lookup("12125551234").isEmpty());
+    }
+
+    @Test
+    public void applyLeavesThePreviousTableAlone() {
+        RouteTable before = table();
+        before.lookup("14165551234");
+        RouteTable after = before.apply(Collections.singletonList(route(6, "1416555", 4, 0.01)), Collections.singletonList(3));
+
+        assertEquals(new HashSet<>(Arrays.asList(2, 4, 6)), routeIDs(after.lookup("14165551234")));
+        assertEquals(4, after.getRouteCount());
+        assertEquals(new HashSet<>(Arrays.asList(4, 6)), new HashSet<>(after.routeIDsWithPrefix("1416")));
+
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), routeIDs(before.lookup("14165551234")));
+        assertEquals(4, before.getRouteCount());
+        assertEquals(new HashSet<>(Arrays.asList(3, 4)), new HashSet<>(before.routeIDsWithPrefix("1416")));
+        assertEquals(4, before.getRoutes().size());
+    }
+
+    @Test
+    public void applyMovesARouteWhoseDigitsChanged() {
+        RouteTable table = table().apply(Collections.singletonList(route(4, "1905555", 3, 0.04)), Collections.emptyList());
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), routeIDs(table.lookup("14165551234")));
+        assertEquals(new HashSet<>(Arrays.asList(5, 4)), routeIDs(table.lookup("19055551234")));
+        List<Integer> moved = table.routeIDsWithPrefix("1905");
+        assertEquals(2, moved.size());
+        assertEquals(4, table.getRouteCount());
+    }
+
+    @Test
+    public void applyKeepsAnswersOutsideTheChange() {
+        RouteTable before = table();
+        RouteSet unaffected = before.lookup("19055551234");
+        RouteTable after = before.apply(Collections.singletonList(route(6, "1416", 4, 0.01)), Collections.emptyList());
+        assertTrue(after.getAnswerCache().getIfPresent("1905") == unaffected);
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 6)), routeIDs(after.lookup("14169990000")));
+    }
+}
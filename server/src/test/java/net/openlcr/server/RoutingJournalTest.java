@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static net.openlcr.server.TestFixtures.carrier;
+import static net.openlcr.server.TestFixtures.plan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import net.openlcr.common.classes.Route;
+import org.apache.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author mgamble
+ */
+public class RoutingJournalTest {
+
+    private static final int RECORDS_PER_MB = (1024 * 1024 - 16) / RoutingJournal.RECORD_SIZE;
+
+    @TempDir
+    File directory;
+
+    @AfterEach
+    public void reset() {
+        TestFixtures.reset();
+    }
+
+    private ByteBuffer onlySegment() throws Exception {
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        return ByteBuffer.wrap(Files.readAllBytes(segments[0].toPath()));
+    }
+
+    @Test
+    public void recordsTheTrunksOfferedInOrder() throws Exception {
+        LCRServer.carrierCache.put("9301", carrier(9301, "A1", "A2"));
+        LCRServer.carrierCache.put("9302", carrier(9302, "TRUNKGROUP9"));
+        List<Route> plan = plan(9301, 9302, 9301);
+        ContactTemplate template = ContactTemplate.forPlan(plan, 0.1);
+
+        RoutingJournal journal = new RoutingJournal(Logger.getLogger(RoutingJournalTest.class), directory.getPath(), 1, 4);
+        journal.record("call-1", "14165551212", 4165550100L, 302, plan, 1, template.getEntries());
+        journal.close();
+
+        ByteBuffer buffer = onlySegment();
+        int record = 16;
+        assertEquals(RoutingJournal.hash("call-1"), buffer.getLong(record + 8));
+        assertEquals(14165551212L, buffer.getLong(record + 16));
+        assertEquals(302, buffer.getShort(record + 32));
+        assertEquals(3, buffer.get(record + 34));
+        assertEquals(3, buffer.get(record + 35));
+        assertEquals(1, buffer.get(record + 36));
+        assertEquals(3, buffer.getShort(record + 38));
+        String[] expected = {"A1", "A2", "TRUNKGRO"};
+        int[] routes = {1, 1, 2};
+        int[] carriers = {9301, 9301, 9302};
+        for (int i = 0; i < expected.length; i++) {
+            int entry = record + 40 + i * 16;
+            assertEquals(routes[i], buffer.getInt(entry));
+            assertEquals(carriers[i], buffer.getInt(entry + 4));
+            assertEquals(expected[i], new String(buffer.array(), entry + 8, 8, "US-ASCII").replace("\0", ""));
+        }
+    }
+
+    @Test
+    public void keepsGoingAfterASegmentCannotBeOpened() throws Exception {
+        File journalDirectory = new File(directory, "journal");
+        RoutingJournal journal = new RoutingJournal(Logger.getLogger(RoutingJournalTest.class), journalDirectory.getPath(), 1, 4);
+        for (int i = 0; i < RECORDS_PER_MB; i++) {
+            journal.record("call-" + i, "1416555", 0, 503, null, 0, null);
+        }
+        assertEquals(0, journal.getDropped());
+
+        /* The next record needs a new segment, which can't be created in a directory that's gone */
+        for (File segment : journalDirectory.listFiles()) {
+            assertTrue(segment.delete());
+        }
+        assertTrue(journalDirectory.delete());
+        journal.record("lost-1", "1416555", 0, 503, null, 0, null);
+        journal.record("lost-2", "1416555", 0, 503, null, 0, null);
+        assertEquals(2, journal.getDropped());
+
+        assertTrue(journalDirectory.mkdir());
+        journal.retryAt = 1;
+        journal.record("kept", "1416555", 0, 503, null, 0, null);
+        journal.close();
+        assertEquals(2, journal.getDropped());
+        File[] segments = journalDirectory.listFiles();
+        assertEquals(1, segments.length);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segments[0].toPath()));
+        assertEquals(RoutingJournal.hash("kept"), buffer.getLong(16 + 8));
+    }
+
+    @Test
+    public void clampsTheSegmentSize() throws Exception {
+        RoutingJournal journal = new RoutingJournal(Logger.getLogger(RoutingJournalTest.class), directory.getPath(), 4096, 4);
+        journal.close();
+        /* 4096MB would overflow an int - it's held to the 1024MB a single mapping allows */
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        assertEquals(16 + ((1024L * 1024L * 1024L - 16) / RoutingJournal.RECORD_SIZE) * RoutingJournal.RECORD_SIZE, segments[0].length());
+    }
+}
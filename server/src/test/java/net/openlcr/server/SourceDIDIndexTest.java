@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import net.openlcr.common.classes.Route;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class SourceDIDIndexTest {
+
+    private static Route override(int routeID, int carrierID) {
+        Route route = new Route();
+        route.setActive(true);
+        route.setRouteID(routeID);
+        route.setCarrierID(carrierID);
+        return route;
+    }
+
+    private static SourceDIDIndex index() {
+        return new SourceDIDIndex.Builder()
+                .addOverride(4165550100L, override(1, 10))
+                .addOverride(4165550100L, override(2, 11))
+                .addBlacklist(4165550100L, 12)
+                .addBlacklist(6135550100L, 10)
+                .build();
+    }
+
+    @Test
+    public void lookupsHitAndMiss() {
+        SourceDIDIndex index = index();
+        assertEquals(2, index.size());
+        assertEquals(2, index.getOverrides(4165550100L).size());
+        assertEquals(ImmutableSet.of(12), index.getBlacklist(4165550100L));
+        assertTrue(index.getOverrides(6135550100L).isEmpty());
+        assertTrue(index.getOverrides(9995550100L).isEmpty());
+        assertTrue(index.getBlacklist(9995550100L).isEmpty());
+        assertEquals(Collections.singletonList(4165550100L), index.billingNumbersUsingCarrier(11));
+    }
+
+    @Test
+    public void batchAppliesEveryChangeAndPrunesEmptyEntries() {
+        SourceDIDIndex before = index();
+        Map<Long, RouteSet> overrides = new HashMap<>();
+        overrides.put(4165550100L, RouteSet.EMPTY);
+        overrides.put(5145550100L, RouteSet.of(Collections.singletonList(override(3, 13))));
+        Map<Long, ImmutableSet<Integer>> blacklists = new HashMap<>();
+        blacklists.put(6135550100L, ImmutableSet.of());
+        blacklists.put(7055550100L, ImmutableSet.of(14, 15));
+
+        SourceDIDIndex after = before.with(overrides, blacklists);
+        assertEquals(3, after.size());
+        assertTrue(after.getOverrides(4165550100L).isEmpty());
+        assertEquals(ImmutableSet.of(12), after.getBlacklist(4165550100L));
+        assertEquals(1, after.getOverrides(5145550100L).size());
+        assertTrue(after.getBlacklist(6135550100L).isEmpty());
+        assertEquals(ImmutableSet.of(14, 15), after.getBlacklist(7055550100L));
+
+        assertEquals(2, before.getOverrides(4165550100L).size());
+        assertEquals(2, before.size());
+    }
+
+    @Test
+    public void emptyBatchReturnsTheSameIndex() {
+        SourceDIDIndex index = index();
+        assertSame(index, index.with(Collections.emptyMap(), Collections.emptyMap()));
+    }
+
+    @Test
+    public void parseBillingNumberRejectsWhatCouldNeverMatch() {
+        assertEquals(4165550100L, SourceDIDIndex.parseBillingNumber("4165550100"));
+        assertEquals(-1, SourceDIDIndex.parseBillingNumber("04165550100"));
+        assertEquals(-1, SourceDIDIndex.parseBillingNumber("416555010x"));
+        assertEquals(-1, SourceDIDIndex.parseBillingNumber("1234567890123456789"));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+import net.openlcr.common.classes.Carrier;
+import net.openlcr.common.classes.Route;
+import net.openlcr.common.classes.TrunkGroup;
+
+/**
+ * Carriers, route plans and an empty database shared by the tests, and the
+ * cleanup for the static state in LCRServer and ContactTemplate they go
+ * through.
+ *
+ * @author mgamble
+ */
+final class TestFixtures {
+
+    private TestFixtures() {
+    }
+
+    /* An active carrier with the trunk groups given, highest priority first */
+    static Carrier carrier(int carrierID, String... trunkGroupIDs) {
+        Carrier carrier = new Carrier();
+        carrier.setActive(true);
+        carrier.setCarrierID(carrierID);
+        carrier.setCarrierName("carrier " + carrierID);
+        int priority = trunkGroupIDs.length;
+        for (String trunkGroupID : trunkGroupIDs) {
+            TrunkGroup trunk = new TrunkGroup();
+            trunk.setCarrerID(carrierID);
+            trunk.setTrunkGroupID(trunkGroupID);
+            trunk.setIpAddress("192.0.2." + carrierID % 250);
+            trunk.setPort(5060);
+            trunk.setPriority(priority--);
+            carrier.addTrunkGroup(trunk);
+        }
+        return carrier;
+    }
+
+    /* One route per carrier given, in order - route IDs count up from 1 */
+    static List<Route> plan(int... carrierIDs) {
+        Route[] routes = new Route[carrierIDs.length];
+        for (int i = 0; i < carrierIDs.length; i++) {
+            routes[i] = new Route();
+            routes[i].setRouteID(i + 1);
+            routes[i].setCarrierID(carrierIDs[i]);
+        }
+        return Arrays.asList(routes);
+    }
+
+    /* A DataSource for LCRServer.ds whose queries all come back with no rows */
+    static HikariDataSource emptyDatabase() {
+        return new HikariDataSource() {
+            @Override
+            public Connection getConnection() {
+                return proxy(Connection.class, (connection, method, args) -> {
+                    if (method.getName().equals("prepareStatement")) {
+                        return proxy(PreparedStatement.class, (statement, statementMethod, statementArgs) -> statementMethod.getName().equals("executeQuery") ? proxy(ResultSet.class, TestFixtures::defaultValue) : defaultValue(statement, statementMethod, statementArgs));
+                    }
+                    return defaultValue(connection, method, args);
+                });
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(TestFixtures.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return type == double.class ? (Object) 0.0 : null;
+    }
+
+    /* Call from @AfterEach in any test that puts carriers into LCRServer.carrierCache */
+    static void reset() {
+        LCRServer.carrierCache.invalidateAll();
+        ContactTemplate.invalidateAll();
+    }
+}
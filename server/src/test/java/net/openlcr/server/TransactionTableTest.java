@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.pkts.buffer.Buffer;
+import io.pkts.packet.sip.SipMessage;
+import io.pkts.packet.sip.SipResponse;
+import io.pkts.packet.sip.header.ViaHeader;
+import io.sipstack.netty.codec.sip.Connection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class TransactionTableTest {
+
+    private final List<SipMessage> sent = new ArrayList<>();
+    private final Connection connection = proxy(Connection.class, (proxy, method, args) -> {
+        if (method.getName().equals("send")) {
+            sent.add((SipMessage) args[0]);
+        }
+        return null;
+    });
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(TransactionTableTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /* Just the parts of an INVITE the table looks at */
+    private static SipMessage invite(String branch) {
+        Buffer buffer = proxy(Buffer.class, (proxy, method, args) -> method.getName().equals("toString") ? branch : null);
+        ViaHeader via = proxy(ViaHeader.class, (proxy, method, args) -> method.getName().equals("getBranch") ? buffer : null);
+        return proxy(SipMessage.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isInvite":
+                    return true;
+                case "getViaHeader":
+                    return via;
+                default:
+                    return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+
+    private static SipResponse response() {
+        return proxy(SipResponse.class, (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+    }
+
+    @Test
+    public void retransmitsAreAbsorbedAndGetTheLastResponse() {
+        TransactionTable table = new TransactionTable(32, 100);
+        SipMessage invite = invite("z9hG4bK-1");
+        assertTrue(table.begin(invite, connection));
+
+        /* Nothing sent yet - the retransmit is just dropped */
+        assertFalse(table.begin(invite("z9hG4bK-1"), connection));
+        assertTrue(sent.isEmpty());
+
+        SipResponse redirect = response();
+        table.sent(invite, redirect);
+        assertFalse(table.begin(invite("z9hG4bK-1"), connection));
+        assertEquals(1, sent.size());
+        assertSame(redirect, sent.get(0));
+        assertEquals(2, table.getAbsorbed());
+        assertTrue(table.begin(invite("z9hG4bK-2"), connection));
+    }
+
+    @Test
+    public void anAbandonedTransactionIsRoutedAgain() {
+        TransactionTable table = new TransactionTable(32, 100);
+        assertTrue(table.begin(invite("z9hG4bK-1"), connection));
+        table.abandon(invite("z9hG4bK-1"));
+        assertEquals(0, table.size());
+        assertTrue(table.begin(invite("z9hG4bK-1"), connection));
+    }
+
+    @Test
+    public void untrackedMessagesAreAlwaysRouted() {
+        TransactionTable table = new TransactionTable(32, 1);
+        /* Pre RFC 3261 branch */
+        assertTrue(table.begin(invite("1234"), connection));
+        assertTrue(table.begin(invite("1234"), connection));
+
+        /* Full - new transactions aren't tracked */
+        assertTrue(table.begin(invite("z9hG4bK-1"), connection));
+        assertTrue(table.begin(invite("z9hG4bK-2"), connection));
+        assertTrue(table.begin(invite("z9hG4bK-2"), connection));
+        assertEquals(1, table.size());
+
+        TransactionTable disabled = new TransactionTable();
+        assertTrue(disabled.begin(invite("z9hG4bK-1"), connection));
+        assertTrue(disabled.begin(invite("z9hG4bK-1"), connection));
+        assertEquals(0, table.getAbsorbed() + disabled.getAbsorbed());
+    }
+}
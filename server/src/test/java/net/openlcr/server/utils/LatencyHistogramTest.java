@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 Matthew M. Gamble <mgamble@mgamble.ca>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.openlcr.server.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author mgamble
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreWithinASixteenthOfTheValue() {
+        for (long value = 0; value < (1L << 41); value = value * 3 / 2 + 1) {
+            long top = LatencyHistogram.highestValue(LatencyHistogram.bucket(value));
+            assertTrue(top >= value, value + " reported as " + top);
+            assertTrue(top - value <= value / 16, value + " reported as " + top);
+        }
+        for (long value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.highestValue(LatencyHistogram.bucket(value)));
+        }
+    }
+
+    @Test
+    public void quantilesNeverUnderestimate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500500), histogram.getSumNanos());
+        long p50 = histogram.getValueAtQuantile(0.5);
+        long p99 = histogram.getValueAtQuantile(0.99);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 17 / 16, "p50 " + p50);
+        assertTrue(p99 >= 990000 && p99 <= 990000 * 17 / 16, "p99 " + p99);
+        assertTrue(histogram.getValueAtQuantile(1.0) >= 1000000);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getValueAtQuantile(1.0));
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(2, histogram.getCount());
+        assertTrue(histogram.getValueAtQuantile(1.0) >= (1L << 41) - 1);
+    }
+}